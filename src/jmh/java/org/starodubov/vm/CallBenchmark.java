@@ -0,0 +1,54 @@
+package org.starodubov.vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.starodubov.vm.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive fib in the interpreter, scores are per call of a user function.
+ * With frames kept in preallocated arrays the call path allocates nothing, so
+ * gc.alloc.rate.norm of the gc profiler stays near zero bytes per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+
+    private static final int N = 20;
+
+    // calls made by fib(N)
+    private static final int CALLS = 21891;
+
+    Vm vm;
+
+    CompiledProgram compiled;
+
+    @Setup
+    public void setUp() {
+        vm = new Vm();
+        compiled = vm.compile("""
+                (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+                (fib %d)
+                """.formatted(N));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public Value fib() {
+        return vm.run(compiled);
+    }
+}
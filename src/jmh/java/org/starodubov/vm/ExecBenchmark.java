@@ -0,0 +1,53 @@
+package org.starodubov.vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.starodubov.vm.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs compiled programs, see {@link Programs}, in each execution tier.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecBenchmark {
+
+    @Param({"fib", "while", "for", "strings", "natives", "globals"})
+    String program;
+
+    @Param({"INTERPRETER", "CLOSURE", "JIT"})
+    String tier;
+
+    Vm vm;
+
+    CompiledProgram compiled;
+
+    @Setup
+    public void setUp() {
+        final VmOptions options = switch (tier) {
+            case "JIT" -> VmOptions.defaults().withJit();
+            default -> VmOptions.defaults().withTier(ExecutionTier.valueOf(tier));
+        };
+        vm = new Vm(options);
+        compiled = vm.compile(Programs.byName(program));
+    }
+
+    @Benchmark
+    public Value run() {
+        return vm.run(compiled);
+    }
+}
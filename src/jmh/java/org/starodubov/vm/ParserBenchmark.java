@@ -0,0 +1,67 @@
+package org.starodubov.vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing, parsing and compiling generated sources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    // generated functions, about 250 bytes of source each
+    @Param({"1000", "10000"})
+    int functions;
+
+    String source;
+
+    Ast ast;
+
+    Global env;
+
+    @Setup
+    public void setUp() throws Exception {
+        source = "(begin " + Programs.generate(functions) + ")";
+        ast = new Parser().parse(source);
+        env = new Vm().env();
+    }
+
+    @Benchmark
+    public int tokenize() throws Exception {
+        final var tokenizer = new Tokenizer(source);
+        int tokens = 0;
+        while (tokenizer.nextToken() != Tokenizer.EOF_TYPE) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public Ast parse() throws Exception {
+        return new Parser().parse(source);
+    }
+
+    // code generation and the bytecode passes, without parsing
+    @Benchmark
+    public Compiler compile() {
+        final var compiler = new Compiler(env.copy(), VmOptions.defaults());
+        compiler.compile(ast);
+        return compiler;
+    }
+}
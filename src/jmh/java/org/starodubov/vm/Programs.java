@@ -0,0 +1,98 @@
+package org.starodubov.vm;
+
+/**
+ * Scripts the benchmarks run, and a generator of large sources for the
+ * parser and compiler benchmarks.
+ */
+final class Programs {
+
+    static final String FIB = """
+            (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+            (fib 25)
+            """;
+
+    static final String WHILE_LOOP = """
+            (def sum (n) (begin
+              (var acc 0)
+              (var i 0)
+              (while (< i n) (begin
+                (set acc (+ acc i))
+                (set i (+ i 1))))
+              acc))
+            (sum 1000000)
+            """;
+
+    static final String FOR_LOOP = """
+            (def count (n) (begin
+              (var acc 0)
+              (for (var i 0) (< i n) (set i (+ i 1))
+                (begin
+                  (var twice (* i 2))
+                  (set acc (+ acc twice))))
+              acc))
+            (count 1000000)
+            """;
+
+    static final String STRINGS = """
+            (var s "")
+            (var i 0)
+            (while (< i 2000) (begin
+              (set s (+ s "ab"))
+              (set i (+ i 1))))
+            s
+            """;
+
+    static final String NATIVES = """
+            (var acc 0)
+            (var i 0)
+            (while (< i 300000) (begin
+              (set acc (+ acc (square i)))
+              (set i (+ i 1))))
+            acc
+            """;
+
+    static final String GLOBALS = """
+            (var a 0)
+            (var b 1)
+            (var i 0)
+            (while (< i 1000000) (begin
+              (set a (+ a b))
+              (set b (+ b 1))
+              (set i (+ i 1))))
+            a
+            """;
+
+    private Programs() {
+    }
+
+    static String byName(String name) {
+        return switch (name) {
+            case "fib" -> FIB;
+            case "while" -> WHILE_LOOP;
+            case "for" -> FOR_LOOP;
+            case "strings" -> STRINGS;
+            case "natives" -> NATIVES;
+            case "globals" -> GLOBALS;
+            default -> throw new IllegalArgumentException("unknown program " + name);
+        };
+    }
+
+    /**
+     * @return a script of the given number of functions with locals, loops and
+     * calls, and globals using them
+     */
+    static String generate(int functions) {
+        final var out = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            out.append("(var g").append(i).append(' ').append(i).append(")\n");
+            out.append("(def f").append(i).append(" (a b) (begin\n")
+                    .append("  (var t (+ a (* b ").append(i).append(")))\n")
+                    .append("  (var s \"name-").append(i).append("\")\n")
+                    .append("  (while (> t 100) (set t (- t (/ t 2))))\n")
+                    .append("  (if (>= t g").append(i).append(") (+ t 1) (- t 1))))\n");
+            out.append("(set g").append(i).append(" (f").append(i).append(" g").append(i).append(" 3))\n");
+        }
+        out.append("g0\n");
+        return out.toString();
+    }
+}
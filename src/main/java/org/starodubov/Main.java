@@ -1,11 +1,21 @@
 package org.starodubov;
 
+import org.starodubov.vm.BytecodeCache;
+import org.starodubov.vm.CompiledProgram;
+import org.starodubov.vm.OpcodeProfiler;
+import org.starodubov.vm.OptimizationLevel;
+import org.starodubov.vm.OutputSink;
 import org.starodubov.vm.Vm;
+import org.starodubov.vm.VmOptions;
 import org.starodubov.vm.value.Value;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
     public static void main(String[] args) throws IOException {
@@ -14,11 +24,46 @@ public class Main {
             return;
         }
 
-        final var vm = new Vm();
-        final String program = Files.readString(Path.of(args[0]));
+        final List<String> flags = Arrays.asList(args).subList(0, args.length - 1);
+        VmOptions options = flags.contains("--jit") ? VmOptions.defaults().withJit() : VmOptions.defaults();
+        for (var level : OptimizationLevel.values()) {
+            if (flags.contains("-" + level.name())) {
+                options = options.withOptimization(level);
+            }
+        }
+        final var vm = new Vm(options);
+        if (flags.contains("--async-output")) {
+            vm.setOutput(OutputSink.async(System.out, OutputSink.DEFAULT_BUFFER_SIZE));
+        }
+        // --profile <file> writes the opcode report to the file, apart from the script output
+        final int profileFlag = flags.indexOf("--profile");
+        if (profileFlag != -1 && profileFlag + 1 >= flags.size()) {
+            System.out.println("--profile needs a report file");
+            return;
+        }
+        final Path profileFile = profileFlag == -1 ? null : Path.of(flags.get(profileFlag + 1));
+        final OpcodeProfiler profiler = profileFile != null ? new OpcodeProfiler() : null;
+        vm.setProfiler(profiler);
+        final String program = Files.readString(Path.of(args[args.length - 1]));
 
-        final Value result = vm.exec(program);
+        final CompiledProgram compiled = flags.contains("--cache")
+                ? new BytecodeCache(BytecodeCache.defaultDir()).compile(vm, program)
+                : vm.compile(program);
+        if (flags.contains("--disassemble")) {
+            compiled.disassemble(System.out);
+        }
+        final Value result;
+        try {
+            result = vm.run(compiled);
+        } finally {
+            vm.output().close();
+        }
 
         System.out.println("Result: " + result);
+        if (profiler != null) {
+            try (var report = new PrintStream(Files.newOutputStream(profileFile), false, StandardCharsets.UTF_8)) {
+                profiler.writeReport(report, 20);
+            }
+        }
     }
-}
\ No newline at end of file
+}
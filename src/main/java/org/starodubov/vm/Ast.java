@@ -0,0 +1,105 @@
+package org.starodubov.vm;
+
+import java.util.Arrays;
+
+/**
+ * Syntax tree in flat arrays, a node is an index into them. Numbers keep their
+ * value inline, strings and symbols an index of their text, lists a range of
+ * the children array. Children of a list are stored together when the list is
+ * closed, so a tree takes a few arrays instead of an object and a list per node.
+ */
+final class Ast {
+
+    private static final ExpType[] TYPES = ExpType.values();
+
+    private byte[] types = new byte[64];
+
+    // number value, index in strings or offset of the first child
+    private int[] values = new int[64];
+
+    // children count of lists
+    private int[] sizes = new int[64];
+
+    private int nodes;
+
+    private String[] strings = new String[32];
+
+    private int stringsCount;
+
+    private int[] children = new int[64];
+
+    private int childrenCount;
+
+    private int root = -1;
+
+    int root() {
+        return root;
+    }
+
+    ExpType type(int node) {
+        return TYPES[types[node]];
+    }
+
+    int number(int node) {
+        return values[node];
+    }
+
+    // text of a string or a symbol
+    String string(int node) {
+        return strings[values[node]];
+    }
+
+    int size(int node) {
+        return sizes[node];
+    }
+
+    int child(int node, int i) {
+        return children[values[node] + i];
+    }
+
+    int nodesCount() {
+        return nodes;
+    }
+
+    void setRoot(int node) {
+        root = node;
+    }
+
+    int addNumber(int value) {
+        return add(ExpType.NUMBER, value, 0);
+    }
+
+    int addString(ExpType type, String s) {
+        if (stringsCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringsCount * 2);
+        }
+        strings[stringsCount] = s;
+        return add(type, stringsCount++, 0);
+    }
+
+    /**
+     * Adds a list of the nodes in {@code items[from, to)}.
+     */
+    int addList(int[] items, int from, int to) {
+        final int count = to - from;
+        if (childrenCount + count > children.length) {
+            children = Arrays.copyOf(children, Math.max(children.length * 2, childrenCount + count));
+        }
+        System.arraycopy(items, from, children, childrenCount, count);
+        final int node = add(ExpType.LIST, childrenCount, count);
+        childrenCount += count;
+        return node;
+    }
+
+    private int add(ExpType type, int value, int size) {
+        if (nodes == types.length) {
+            types = Arrays.copyOf(types, nodes * 2);
+            values = Arrays.copyOf(values, nodes * 2);
+            sizes = Arrays.copyOf(sizes, nodes * 2);
+        }
+        types[nodes] = (byte) type.ordinal();
+        values[nodes] = value;
+        sizes[nodes] = size;
+        return nodes++;
+    }
+}
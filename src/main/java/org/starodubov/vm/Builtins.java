@@ -0,0 +1,15 @@
+package org.starodubov.vm;
+
+/**
+ * Natives every vm has, registered through {@link Global#addNatives}.
+ * The print natives write to the output sink of the vm, they are added by the vm itself.
+ */
+final class Builtins {
+
+    private Builtins() {
+    }
+
+    static long square(long x) {
+        return x * x;
+    }
+}
@@ -0,0 +1,194 @@
+package org.starodubov.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Directory of compiled programs, one file per script. A file is keyed by a
+ * SHA-256 hash of the source, the class files of the vm, the compiler options
+ * and the globals the vm provides to the compiler, so any change of those
+ * makes a new key and the old file is not used. A build that changes the
+ * compiler or the vm invalidates the cache without a format version bump.
+ * Files are memory mapped when loaded, a hit skips the parser and the compiler.
+ */
+public final class BytecodeCache {
+
+    private static final String SUFFIX = ".svmc";
+
+    // packages whose class files, nested classes included, decide what a compiled program holds and means
+    private static final List<String> VM_PACKAGES = List.of("org/starodubov/vm", "org/starodubov/vm/value");
+
+    // empty when the class files cannot be read
+    static final byte[] COMPILER_DIGEST = compilerDigest(codeSource());
+
+    private final Path dir;
+
+    private int hits;
+
+    private int misses;
+
+    public BytecodeCache(Path dir) {
+        this.dir = dir;
+    }
+
+    public static Path defaultDir() {
+        return Path.of(System.getProperty("user.home"), ".cache", "starodubov-vm");
+    }
+
+    /**
+     * Gives the cached program for the source or compiles it with the vm and stores it.
+     */
+    public CompiledProgram compile(Vm vm, String source) {
+        final byte[] key = key(vm, source);
+        final Path file = dir.resolve(HexFormat.of().formatHex(key) + SUFFIX);
+
+        final CompiledProgram cached = load(file, key);
+        if (cached != null) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        final CompiledProgram program = vm.compile(source);
+        store(file, key, program);
+        return program;
+    }
+
+    public int hits() {
+        return hits;
+    }
+
+    public int misses() {
+        return misses;
+    }
+
+    private static CompiledProgram load(Path file, byte[] key) {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return ProgramFormat.read(data, key);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // written to a temporary file first, so a concurrent reader never sees a partial file
+    private void store(Path file, byte[] key, CompiledProgram program) {
+        try {
+            Files.createDirectories(dir);
+            final Path tmp = Files.createTempFile(dir, "program", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmp)) {
+                    ProgramFormat.write(program, key, out);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] key(Vm vm, String source) {
+        final MessageDigest digest = sha256();
+        update(digest, Integer.toString(ProgramFormat.VERSION));
+        digest.update(COMPILER_DIGEST);
+        update(digest, vm.options().optimization().name());
+        update(digest, Integer.toString(vm.options().inlineBudget()));
+        update(digest, Boolean.toString(vm.options().shareStrings()));
+        for (var v : vm.env().globals()) {
+            update(digest, v.name);
+        }
+        update(digest, source);
+        return digest.digest();
+    }
+
+    // directory or jar the vm classes are loaded from, null in a native image
+    private static Path codeSource() {
+        final CodeSource source = Vm.class.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return null;
+        }
+        try {
+            return Path.of(source.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Digest of the names and bytes of the class files of {@link #VM_PACKAGES}
+     * under a class path root, a directory or a jar. Class files are not there
+     * in a native image, its build is fixed and only the format version counts.
+     */
+    static byte[] compilerDigest(Path root) {
+        if (root == null) {
+            return new byte[0];
+        }
+        if (Files.isDirectory(root)) {
+            return compilerDigest(root, root);
+        }
+        try (FileSystem jar = FileSystems.newFileSystem(root)) {
+            return compilerDigest(root, jar.getPath("/"));
+        } catch (IOException | ProviderNotFoundException e) {
+            return new byte[0];
+        }
+    }
+
+    private static byte[] compilerDigest(Path root, Path classes) {
+        final MessageDigest digest = sha256();
+        for (String pkg : VM_PACKAGES) {
+            final Path dir = classes.resolve(pkg);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.filter(f -> f.getFileName().toString().endsWith(".class"))
+                        .sorted(Comparator.comparing(f -> f.getFileName().toString()))
+                        .toList()) {
+                    update(digest, file.getFileName().toString());
+                    digest.update(Files.readAllBytes(file));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read the vm classes in " + root, e);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,297 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.Value;
+import org.starodubov.vm.value.ValueTypes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * Optimizations over the generated code of a code object, run before tail
+ * calls and superinstructions are selected:
+ * <pre>
+ * CONST a, CONST b, ADD|SUB|MUL|DIV|COMPARE  -> CONST (a op b)      folding, numbers and string ADD
+ * CONST|GET_LOCAL|GET_GLOBAL, POP            -> (nothing)           push/pop cancellation
+ * JMP|JMP_IF_FALSE to a JMP                  -> to its target       jump threading
+ * JMP to the next instruction                -> (nothing)
+ * CONST false, JMP_IF_FALSE t                -> JMP t               branch pruning (O2)
+ * CONST true, JMP_IF_FALSE t                 -> (nothing)
+ * instructions no path reaches               -> (nothing)           unreachable code (O2)
+ * </pre>
+ * Instructions after the first of a matched sequence must not be jump targets.
+ * Passes are repeated while they change something, as folding makes new
+ * constant tests and pruning new unreachable code.
+ */
+final class BytecodeOptimizer {
+
+    private final CodeObj co;
+
+    private final OptimizationLevel level;
+
+    // literals of co, new constants made by folding are added once
+    private final Map<Value, Integer> constants = new HashMap<>();
+
+    private List<Instruction> in;
+
+    private BytecodeOptimizer(CodeObj co, OptimizationLevel level) {
+        this.co = co;
+        this.level = level;
+        for (int i = 0; i < co.constants().size(); i++) {
+            final Value c = co.constants().get(i);
+            if (isLiteral(c)) {
+                constants.putIfAbsent(c, i);
+            }
+        }
+    }
+
+    static void optimize(CodeObj co, OptimizationLevel level) {
+        if (level == OptimizationLevel.O0) {
+            return;
+        }
+        new BytecodeOptimizer(co, level).run();
+    }
+
+    private void run() {
+        in = Instruction.decode(co.bytecode().code(), co.bytecode().size());
+
+        boolean optimized = false;
+        boolean changed = true;
+        for (int round = 0; changed && round < in.size(); round++) {
+            changed = fold() | cancelPushPop() | threadJumps();
+            if (level == OptimizationLevel.O2) {
+                changed |= pruneBranches() | removeUnreachable();
+            }
+            optimized |= changed;
+        }
+
+        if (optimized) {
+            co.bytecode().replace(Instruction.encode(in));
+        }
+    }
+
+    // folded instructions are never jump targets, so no jump has to be moved
+    private boolean fold() {
+        final List<Instruction> out = new ArrayList<>(in.size());
+        boolean changed = false;
+        for (var instruction : in) {
+            out.add(instruction);
+            // the result of a fold may fold with the following operand
+            for (int n = out.size(); n >= 3; n = out.size()) {
+                final Instruction a = out.get(n - 3), b = out.get(n - 2), op = out.get(n - 1);
+                if (a.opcode != OP_CONST || b.opcode != OP_CONST || b.jumpTarget || op.jumpTarget) {
+                    break;
+                }
+                final Value result = fold(constant(a), constant(b), op);
+                if (result == null) {
+                    break;
+                }
+                // the first instruction is kept, jumps to the sequence still land on it
+                a.operands = new int[]{constIdx(result)};
+                out.removeLast();
+                out.removeLast();
+                changed = true;
+            }
+        }
+        in = out;
+        return changed;
+    }
+
+    private static Value fold(Value a, Value b, Instruction op) {
+        final boolean numbers = a.type() == ValueTypes.NUMBER && b.type() == ValueTypes.NUMBER;
+        return switch (op.opcode) {
+            case OP_ADD -> {
+                if (numbers) {
+                    yield Value.number(Value.asNumber(a) + Value.asNumber(b));
+                }
+                if (a.type() == ValueTypes.STRING && b.type() == ValueTypes.STRING) {
+                    yield Value.string(Value.asString(a) + Value.asString(b));
+                }
+                yield null;
+            }
+            case OP_SUB -> numbers ? Value.number(Value.asNumber(a) - Value.asNumber(b)) : null;
+            case OP_MUL -> numbers ? Value.number(Value.asNumber(a) * Value.asNumber(b)) : null;
+            // division by zero is left to fail at run time
+            case OP_DIV -> numbers && Value.asNumber(b) != 0 ? Value.number(Value.asNumber(a) / Value.asNumber(b)) : null;
+            case OP_COMPARE -> numbers ? Value.bool(compare(op.operands[0], Value.asNumber(a), Value.asNumber(b))) : null;
+            default -> null;
+        };
+    }
+
+    private static boolean compare(int op, long a, long b) {
+        return switch (op) {
+            case Compiler.CMP_LESS_CODE -> a < b;
+            case Compiler.CMP_GREAT_CODE -> a > b;
+            case Compiler.CMP_EQ_CODE -> a == b;
+            case Compiler.CMP_GREAT_OR_EQ_CODE -> a >= b;
+            case Compiler.CMP_EQ_OR_LESS_CODE -> a <= b;
+            case Compiler.CMP_NOT_EQ_CODE -> a != b;
+            default -> throw new IllegalStateException("unknown compare code " + op);
+        };
+    }
+
+    private boolean cancelPushPop() {
+        final boolean[] removed = new boolean[in.size()];
+        boolean changed = false;
+        for (int i = 0; i + 1 < in.size(); i++) {
+            final Instruction push = in.get(i), pop = in.get(i + 1);
+            if (pop.opcode == OP_POP && !pop.jumpTarget
+                    && (push.opcode == OP_CONST || push.opcode == OP_GET_LOCAL || push.opcode == OP_GET_GLOBAL)) {
+                removed[i] = removed[i + 1] = true;
+                changed = true;
+                i++;
+            }
+        }
+        compactIfNeeded(removed);
+        return changed;
+    }
+
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (var instruction : in) {
+            if (instruction.target == null) {
+                continue;
+            }
+            // a chain longer than the code is a loop of jumps
+            Instruction target = instruction.target;
+            for (int steps = 0; target.opcode == OP_JMP && target.target != target && steps < in.size(); steps++) {
+                target = target.target;
+            }
+            if (target != instruction.target) {
+                instruction.target = target;
+                changed = true;
+            }
+        }
+
+        final boolean[] removed = new boolean[in.size()];
+        for (int i = 0; i + 1 < in.size(); i++) {
+            final Instruction jmp = in.get(i);
+            if (jmp.opcode == OP_JMP && jmp.target == in.get(i + 1)) {
+                removed[i] = true;
+                changed = true;
+            }
+        }
+        compactIfNeeded(removed);
+        return changed;
+    }
+
+    private boolean pruneBranches() {
+        final boolean[] removed = new boolean[in.size()];
+        boolean changed = false;
+        for (int i = 0; i + 1 < in.size(); i++) {
+            final Instruction test = in.get(i), jmp = in.get(i + 1);
+            if (test.opcode != OP_CONST || jmp.opcode != OP_JMP_IF_FALSE || jmp.jumpTarget
+                    || constant(test).type() != ValueTypes.BOOLEAN) {
+                continue;
+            }
+            if (Value.asBoolean(constant(test))) {
+                removed[i] = removed[i + 1] = true;
+            } else {
+                test.opcode = OP_JMP;
+                test.operands = new int[]{0};
+                test.target = jmp.target;
+                removed[i + 1] = true;
+            }
+            changed = true;
+            i++;
+        }
+        compactIfNeeded(removed);
+        return changed;
+    }
+
+    private boolean removeUnreachable() {
+        final Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < in.size(); i++) {
+            index.put(in.get(i), i);
+        }
+
+        final boolean[] reached = new boolean[in.size()];
+        final var work = new ArrayDeque<Integer>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            final int i = work.pop();
+            if (i >= in.size() || reached[i]) {
+                continue;
+            }
+            reached[i] = true;
+            final Instruction instruction = in.get(i);
+            if (instruction.target != null) {
+                work.push(index.get(instruction.target));
+            }
+            if (instruction.opcode != OP_JMP && instruction.opcode != OP_RETURN && instruction.opcode != OP_HALT) {
+                work.push(i + 1);
+            }
+        }
+
+        final boolean[] removed = new boolean[in.size()];
+        boolean changed = false;
+        // the END marker stays, it stands for the offset after the code
+        for (int i = 0; i < in.size() - 1; i++) {
+            if (!reached[i]) {
+                removed[i] = true;
+                changed = true;
+            }
+        }
+        compactIfNeeded(removed);
+        return changed;
+    }
+
+    /**
+     * Drops removed instructions, jumps to one of them go to the next kept instruction.
+     */
+    private void compactIfNeeded(boolean[] removed) {
+        final Map<Instruction, Instruction> forward = new IdentityHashMap<>();
+        Instruction next = null;
+        for (int i = in.size() - 1; i >= 0; i--) {
+            if (removed[i]) {
+                forward.put(in.get(i), next);
+            } else {
+                next = in.get(i);
+            }
+        }
+        if (forward.isEmpty()) {
+            return;
+        }
+
+        final List<Instruction> out = new ArrayList<>(in.size() - forward.size());
+        for (int i = 0; i < in.size(); i++) {
+            if (!removed[i]) {
+                out.add(in.get(i));
+            }
+        }
+        for (var instruction : out) {
+            instruction.jumpTarget = false;
+        }
+        for (var instruction : out) {
+            if (instruction.target != null) {
+                instruction.target = forward.getOrDefault(instruction.target, instruction.target);
+                instruction.target.jumpTarget = true;
+            }
+        }
+        in = out;
+    }
+
+    private Value constant(Instruction instruction) {
+        return co.constants().get(instruction.operands[0]);
+    }
+
+    private int constIdx(Value value) {
+        final Integer existed = constants.get(value);
+        if (existed != null) {
+            return existed;
+        }
+        co.addConst(value);
+        constants.put(value, co.constants().size() - 1);
+        return co.constants().size() - 1;
+    }
+
+    private static boolean isLiteral(Value c) {
+        return c.type() == ValueTypes.NUMBER || c.type() == ValueTypes.STRING || c.type() == ValueTypes.BOOLEAN;
+    }
+}
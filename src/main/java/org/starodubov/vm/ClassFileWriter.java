@@ -0,0 +1,268 @@
+package org.starodubov.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal writer of JVM class files, just enough for the classes the JIT emits:
+ * one class, no fields, methods with a Code attribute. Class files are written
+ * in version 49, which is verified by type inference, so no StackMapTable
+ * frames have to be computed.
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> methods = new ArrayList<>();
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        }, 1);
+    }
+
+    int classRef(String internalName) {
+        final int name = utf8(internalName);
+        return constant("C" + internalName, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(name);
+        }, 1);
+    }
+
+    int longConst(long value) {
+        return constant("J" + value, out -> {
+            out.writeByte(CONSTANT_LONG);
+            out.writeLong(value);
+        }, 2);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        final int ownerIdx = classRef(owner);
+        final int nameIdx = utf8(name);
+        final int descriptorIdx = utf8(descriptor);
+        final int nameAndType = constant("N" + name + ":" + descriptor, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIdx);
+            out.writeShort(descriptorIdx);
+        }, 1);
+        return constant("M" + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(CONSTANT_METHODREF);
+            out.writeShort(ownerIdx);
+            out.writeShort(nameAndType);
+        }, 1);
+    }
+
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code) {
+        final int nameIdx = utf8(name);
+        final int descriptorIdx = utf8(descriptor);
+        final int codeAttr = utf8("Code");
+        methods.add(write(out -> {
+            out.writeShort(access);
+            out.writeShort(nameIdx);
+            out.writeShort(descriptorIdx);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }));
+    }
+
+    byte[] toByteArray() {
+        return write(out -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] m : methods) {
+                out.write(m);
+            }
+            out.writeShort(0); // attributes
+        });
+    }
+
+    private int constant(String key, Writer writer, int slots) {
+        final Integer existed = poolIndex.get(key);
+        if (existed != null) {
+            return existed;
+        }
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final int idx = poolCount;
+        poolCount += slots;
+        poolIndex.put(key, idx);
+        return idx;
+    }
+
+    private static byte[] write(Writer writer) {
+        final var bytes = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Method body assembler with forward label patching.
+     */
+    static final class Code {
+        static final int LCONST_0 = 0x09;
+        static final int LCONST_1 = 0x0A;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int LALOAD = 0x2F;
+        static final int LSTORE = 0x37;
+        static final int DUP2 = 0x5C;
+        static final int IADD = 0x60;
+        static final int LADD = 0x61;
+        static final int LSUB = 0x65;
+        static final int LMUL = 0x69;
+        static final int LDIV = 0x6D;
+        static final int LCMP = 0x94;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9A;
+        static final int IFLT = 0x9B;
+        static final int IFGE = 0x9C;
+        static final int IFGT = 0x9D;
+        static final int IFLE = 0x9E;
+        static final int GOTO = 0xA7;
+        static final int LRETURN = 0xAD;
+        static final int RETURN = 0xB1;
+        static final int INVOKESPECIAL = 0xB7;
+        static final int INVOKESTATIC = 0xB8;
+        static final int WIDE = 0xC4;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+        // positions of branch instructions and the labels they jump to
+        private final List<int[]> fixups = new ArrayList<>();
+
+        private final Map<Integer, Integer> labels = new HashMap<>();
+
+        int position() {
+            return code.size();
+        }
+
+        Code op(int opcode) {
+            code.write(opcode);
+            return this;
+        }
+
+        Code op(int opcode, int u1) {
+            code.write(opcode);
+            code.write(u1);
+            return this;
+        }
+
+        Code opShort(int opcode, int u2) {
+            code.write(opcode);
+            code.write(u2 >>> 8);
+            code.write(u2);
+            return this;
+        }
+
+        Code local(int opcode, int idx) {
+            if (idx > 0xFF) {
+                code.write(WIDE);
+                return opShort(opcode, idx);
+            }
+            return op(opcode, idx);
+        }
+
+        Code pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                return op(0x03 + value);
+            }
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                return op(BIPUSH, value & 0xFF);
+            }
+            return opShort(SIPUSH, value & 0xFFFF);
+        }
+
+        void bind(int label) {
+            labels.put(label, position());
+        }
+
+        Code jump(int opcode, int label) {
+            fixups.add(new int[]{position(), label});
+            return opShort(opcode, 0);
+        }
+
+        byte[] toByteArray() {
+            final byte[] bytes = code.toByteArray();
+            for (int[] fixup : fixups) {
+                final Integer target = labels.get(fixup[1]);
+                if (target == null) {
+                    throw new IllegalStateException("unbound label " + fixup[1]);
+                }
+                final int offset = target - fixup[0];
+                bytes[fixup[0] + 1] = (byte) (offset >>> 8);
+                bytes[fixup[0] + 2] = (byte) offset;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.FunctionObj;
+import org.starodubov.vm.value.Value;
+
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * Closure tier. The bytecode of a code object is translated once into small
+ * node objects with decoded operands, stored at the offsets of their
+ * instructions. A node executes itself and returns the offset of the next
+ * node to run, -1 on HALT. Each node class is compiled by HotSpot on its own,
+ * so it gets profiled and specialized separately instead of sharing one big switch.
+ */
+final class ClosureCompiler {
+
+    abstract static class Node {
+        // offset of the following instruction
+        final int next;
+
+        Node(int next) {
+            this.next = next;
+        }
+
+        abstract int exec(Vm vm);
+    }
+
+    static Node[] nodesOf(CodeObj co) {
+        Object nodes = co.tierData().closureNodes;
+        if (nodes == null) {
+            nodes = compile(co);
+            co.tierData().closureNodes = nodes;
+        }
+        return (Node[]) nodes;
+    }
+
+    static Node[] compile(CodeObj co) {
+        final int[] code = co.bytecode().code();
+        final int size = co.bytecode().size();
+        final Node[] nodes = new Node[size];
+        int offset = 0;
+        while (offset < size) {
+            final int opcode = code[offset];
+            final int next = offset + 1 + OpCodes.operandsCount(opcode);
+            nodes[offset] = node(co, opcode, code, offset + 1, next);
+            offset = next;
+        }
+        return nodes;
+    }
+
+    private static Node node(CodeObj co, int opcode, int[] code, int operand, int next) {
+        return switch (opcode) {
+            case OP_HALT -> new Halt(next);
+            case OP_CONST -> new Const(constant(co, code[operand]), next);
+            case OP_ADD, OP_ADD_NUM, OP_ADD_STR -> new Add(next);
+            case OP_SUB -> new Sub(next);
+            case OP_MUL -> new Mul(next);
+            case OP_DIV -> new Div(next);
+            case OP_COMPARE, OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM ->
+                    compare(code[operand], next);
+            case OP_JMP_IF_FALSE -> new JmpIfFalse(code[operand], next);
+            case OP_JMP -> new Jmp(code[operand], next);
+            case OP_GET_GLOBAL -> new GetGlobal(code[operand], next);
+            case OP_SET_GLOBAL -> new SetGlobal(code[operand], next);
+            case OP_POP -> new Pop(next);
+            case OP_GET_LOCAL -> new GetLocal(code[operand], next);
+            case OP_SET_LOCAL -> new SetLocal(code[operand], next);
+            case OP_SCOPE_EXIT -> new ScopeExit(code[operand], next);
+            case OP_CALL -> new Call(code[operand], next);
+            case OP_TAIL_CALL -> new TailCall(code[operand], next);
+            case OP_RETURN -> new Return(next);
+            case OP_CMP_JMP_IF_FALSE -> new CmpJmpIfFalse(code[operand], code[operand + 1], next);
+            case OP_INC_LOCAL -> new IncLocal(code[operand], constant(co, code[operand + 1]), next);
+            case OP_INC_GLOBAL -> new IncGlobal(code[operand], constant(co, code[operand + 1]), next);
+            case OP_ADD_LOCALS -> new AddLocals(code[operand], code[operand + 1], next);
+            case OP_ADD_CONST -> new AddConst(constant(co, code[operand]), next);
+            case OP_SUB_CONST -> new SubConst(constant(co, code[operand]), next);
+            default -> throw new IllegalStateException("unknown instruction 0x%X".formatted(opcode));
+        };
+    }
+
+    private static Value constant(CodeObj co, int idx) {
+        return co.constants().get(idx);
+    }
+
+    private static Node compare(int compareCode, int next) {
+        return switch (compareCode) {
+            case Compiler.CMP_LESS_CODE -> new Less(next);
+            case Compiler.CMP_GREAT_CODE -> new Greater(next);
+            case Compiler.CMP_EQ_CODE -> new Equal(next);
+            default -> new Compare(compareCode, next);
+        };
+    }
+
+    static final class Halt extends Node {
+        Halt(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            return -1;
+        }
+    }
+
+    static final class Const extends Node {
+        final Value value;
+
+        Const(Value value, int next) {
+            super(next);
+            this.value = value;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.push(value);
+            return next;
+        }
+    }
+
+    static final class Add extends Node {
+        Add(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.add();
+            return next;
+        }
+    }
+
+    static final class Sub extends Node {
+        Sub(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.sub();
+            return next;
+        }
+    }
+
+    static final class Mul extends Node {
+        Mul(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.mul();
+            return next;
+        }
+    }
+
+    static final class Div extends Node {
+        Div(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.div();
+            return next;
+        }
+    }
+
+    static final class Compare extends Node {
+        final int compareCode;
+
+        Compare(int compareCode, int next) {
+            super(next);
+            this.compareCode = compareCode;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.compare(compareCode);
+            return next;
+        }
+    }
+
+    static final class Less extends Node {
+        Less(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            if (vm.numericOperands()) {
+                vm.setCompareResult(vm.peekNumber(1) < vm.peekNumber(0));
+            } else {
+                vm.compare(Compiler.CMP_LESS_CODE);
+            }
+            return next;
+        }
+    }
+
+    static final class Greater extends Node {
+        Greater(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            if (vm.numericOperands()) {
+                vm.setCompareResult(vm.peekNumber(1) > vm.peekNumber(0));
+            } else {
+                vm.compare(Compiler.CMP_GREAT_CODE);
+            }
+            return next;
+        }
+    }
+
+    static final class Equal extends Node {
+        Equal(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            if (vm.numericOperands()) {
+                vm.setCompareResult(vm.peekNumber(1) == vm.peekNumber(0));
+            } else {
+                vm.compare(Compiler.CMP_EQ_CODE);
+            }
+            return next;
+        }
+    }
+
+    static final class JmpIfFalse extends Node {
+        final int target;
+
+        JmpIfFalse(int target, int next) {
+            super(next);
+            this.target = target;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            return vm.popBool() ? next : target;
+        }
+    }
+
+    static final class Jmp extends Node {
+        final int target;
+
+        Jmp(int target, int next) {
+            super(next);
+            this.target = target;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            if (target < next && vm.jit != null) {
+                vm.jit.backEdge(vm.fn.co());
+            }
+            return target;
+        }
+    }
+
+    static final class GetGlobal extends Node {
+        final int globalIdx;
+
+        GetGlobal(int globalIdx, int next) {
+            super(next);
+            this.globalIdx = globalIdx;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.getGlobal(globalIdx);
+            return next;
+        }
+    }
+
+    static final class SetGlobal extends Node {
+        final int globalIdx;
+
+        SetGlobal(int globalIdx, int next) {
+            super(next);
+            this.globalIdx = globalIdx;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.setGlobal(globalIdx);
+            return next;
+        }
+    }
+
+    static final class Pop extends Node {
+        Pop(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.popN(1);
+            return next;
+        }
+    }
+
+    static final class GetLocal extends Node {
+        final int localIdx;
+
+        GetLocal(int localIdx, int next) {
+            super(next);
+            this.localIdx = localIdx;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.getLocal(localIdx);
+            return next;
+        }
+    }
+
+    static final class SetLocal extends Node {
+        final int localIdx;
+
+        SetLocal(int localIdx, int next) {
+            super(next);
+            this.localIdx = localIdx;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.setLocal(localIdx);
+            return next;
+        }
+    }
+
+    static final class ScopeExit extends Node {
+        final int count;
+
+        ScopeExit(int count, int next) {
+            super(next);
+            this.count = count;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.scopeExit(count);
+            return next;
+        }
+    }
+
+    static final class Call extends Node {
+        final int argsCount;
+
+        Call(int argsCount, int next) {
+            super(next);
+            this.argsCount = argsCount;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            final FunctionObj caller = vm.fn;
+            final int pc = vm.call(argsCount, next);
+            if (vm.fn != caller) {
+                vm.nodes = nodesOf(vm.fn.co());
+            }
+            return pc;
+        }
+    }
+
+    static final class TailCall extends Node {
+        final int argsCount;
+
+        TailCall(int argsCount, int next) {
+            super(next);
+            this.argsCount = argsCount;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            final FunctionObj caller = vm.fn;
+            final int pc = vm.tailCall(argsCount, next);
+            if (vm.fn != caller) {
+                vm.nodes = nodesOf(vm.fn.co());
+            }
+            return pc;
+        }
+    }
+
+    static final class Return extends Node {
+        Return(int next) {
+            super(next);
+        }
+
+        @Override
+        int exec(Vm vm) {
+            final int ra = vm.ret();
+            vm.nodes = nodesOf(vm.fn.co());
+            return ra;
+        }
+    }
+
+    static final class CmpJmpIfFalse extends Node {
+        final int compareCode;
+        final int target;
+
+        CmpJmpIfFalse(int compareCode, int target, int next) {
+            super(next);
+            this.compareCode = compareCode;
+            this.target = target;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            return vm.compareAndPop(compareCode) ? next : target;
+        }
+    }
+
+    static final class IncLocal extends Node {
+        final int localIdx;
+        final Value value;
+
+        IncLocal(int localIdx, Value value, int next) {
+            super(next);
+            this.localIdx = localIdx;
+            this.value = value;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.incLocal(localIdx, value);
+            return next;
+        }
+    }
+
+    static final class IncGlobal extends Node {
+        final int globalIdx;
+        final Value value;
+
+        IncGlobal(int globalIdx, Value value, int next) {
+            super(next);
+            this.globalIdx = globalIdx;
+            this.value = value;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.incGlobal(globalIdx, value);
+            return next;
+        }
+    }
+
+    static final class AddLocals extends Node {
+        final int localIdx1;
+        final int localIdx2;
+
+        AddLocals(int localIdx1, int localIdx2, int next) {
+            super(next);
+            this.localIdx1 = localIdx1;
+            this.localIdx2 = localIdx2;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.addLocals(localIdx1, localIdx2);
+            return next;
+        }
+    }
+
+    static final class AddConst extends Node {
+        final Value value;
+
+        AddConst(Value value, int next) {
+            super(next);
+            this.value = value;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.addConst(value);
+            return next;
+        }
+    }
+
+    static final class SubConst extends Node {
+        final Value value;
+
+        SubConst(Value value, int next) {
+            super(next);
+            this.value = value;
+        }
+
+        @Override
+        int exec(Vm vm) {
+            vm.subConst(value);
+            return next;
+        }
+    }
+}
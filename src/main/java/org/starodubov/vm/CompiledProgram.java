@@ -0,0 +1,94 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.FunctionObj;
+import org.starodubov.vm.value.Value;
+import org.starodubov.vm.value.ValueTypes;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A script compiled once by {@link Vm#compile}, to be run any number of times
+ * with {@link Vm#run}. Holds the main function, the code objects with their
+ * constant pools and the layout of globals the code refers to by index.
+ * <p>
+ * Runs do not change the program: every run gets its own globals, created
+ * from the layout. Tiers may still cache run time data in the code objects
+ * (quickened opcodes, closure nodes, JIT code), that does not change what the
+ * program computes.
+ */
+public final class CompiledProgram {
+
+    private final FunctionObj main;
+
+    private final List<CodeObj> codeObjs;
+
+    private final List<String> globalNames;
+
+    // values globals have before the program runs: natives, host variables, 0 for script variables
+    private final List<Value> globalValues;
+
+    CompiledProgram(FunctionObj main, List<CodeObj> codeObjs, Global global) {
+        this(main, codeObjs,
+                global.globals().stream().map(v -> v.name).toList(),
+                global.globals().stream().map(v -> v.value).toList());
+    }
+
+    CompiledProgram(FunctionObj main, List<CodeObj> codeObjs, List<String> globalNames, List<Value> globalValues) {
+        this.main = main;
+        this.codeObjs = List.copyOf(codeObjs);
+        this.globalNames = List.copyOf(globalNames);
+        this.globalValues = List.copyOf(globalValues);
+    }
+
+    public FunctionObj main() {
+        return main;
+    }
+
+    public List<CodeObj> codeObjs() {
+        return codeObjs;
+    }
+
+    public List<String> globalNames() {
+        return globalNames;
+    }
+
+    List<Value> globalValues() {
+        return globalValues;
+    }
+
+    /**
+     * Globals for one run, indexed by OP_GET_GLOBAL and OP_SET_GLOBAL. Natives and
+     * host variables registered in the running vm take their value from there, so
+     * a run can get other inputs than the compile did.
+     */
+    Value[] link(Global env) {
+        final Value[] globals = new Value[globalNames.size()];
+        for (int i = 0; i < globals.length; i++) {
+            final String name = globalNames.get(i);
+            final int envIdx = env.getGlobalIdx(name);
+            Value value = globalValues.get(i);
+            if (envIdx != -1) {
+                value = env.get(envIdx).value;
+            } else if (value.type() == ValueTypes.NATIVE) {
+                // natives are bound to the vm that registered them
+                throw new IllegalStateException("native function '%s' is not defined in this vm".formatted(name));
+            }
+            globals[i] = value;
+        }
+        return globals;
+    }
+
+    public void disassemble(PrintStream out) {
+        final var vars = new ArrayList<GlobalVar>(globalNames.size());
+        for (int i = 0; i < globalNames.size(); i++) {
+            vars.add(new GlobalVar(globalNames.get(i), globalValues.get(i)));
+        }
+        final var disassembler = new Disassembler(new Global(vars), out);
+        for (var co : codeObjs) {
+            disassembler.printDisassemble(co);
+        }
+    }
+}
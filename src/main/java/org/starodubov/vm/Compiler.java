@@ -1,42 +1,70 @@
 package org.starodubov.vm;
 
+import org.starodubov.vm.value.Bytecode;
 import org.starodubov.vm.value.CodeObj;
 import org.starodubov.vm.value.FunctionObj;
 import org.starodubov.vm.value.Value;
 import org.starodubov.vm.value.ValueTypes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.function.Function;
+import java.util.Map;
 
 public class Compiler {
 
-    public void compile(final Exp ast) {
+    public void compile(final Ast ast) {
+        final var event = new VmEvents.Compile();
+        event.begin();
+        compileProgram(ast);
+        event.end();
+        if (event.shouldCommit()) {
+            event.codeObjects = codeObjs.size();
+            for (var c : codeObjs) {
+                event.bytecodeSize += c.bytecode().size();
+                event.constants += c.constants().size();
+            }
+            event.optimization = optimization.name();
+            event.commit();
+        }
+    }
+
+    private void compileProgram(final Ast ast) {
+        this.ast = ast;
         co = Value.asCode(createCodeObjValue("main", 0));
         main = new FunctionObj(co);
-        gen(ast);
+        gen(ast.root());
         emit(OpCodes.OP_HALT);
+        bindConstantFunctions();
+        if (optimization != OptimizationLevel.O0) {
+            FunctionInliner.inline(codeObjs, inlineBudget);
+        }
+        for (var c : codeObjs) {
+            finishCodeObj(c);
+        }
     }
 
     public FunctionObj getMainFn() {
         return main;
     }
 
-    void gen(final Exp exp) {
-        switch (exp.type) {
+    void gen(final int exp) {
+        switch (ast.type(exp)) {
             case NUMBER -> {
                 emit(OpCodes.OP_CONST);
-                emit(numConstIdx(exp.number));
+                emit(numConstIdx(ast.number(exp)));
             }
             case STRING -> {
                 emit(OpCodes.OP_CONST);
-                emit(stringConstIdx(exp.string));
+                emit(stringConstIdx(ast.string(exp)));
             }
             case LIST -> {
-                final Exp tag = exp.list.getFirst();
+                final int tag = ast.child(exp, 0);
 
-                if (tag.type == ExpType.SYMBOL) {
-                    final var op = tag.string;
+                if (ast.type(tag) == ExpType.SYMBOL) {
+                    final var op = ast.string(tag);
                     switch (op) {
                         case "+" -> genBinaryOp(exp, OpCodes.OP_ADD);
                         case "-" -> genBinaryOp(exp, OpCodes.OP_SUB);
@@ -51,23 +79,25 @@ public class Compiler {
                         // if <test> <consequent> <alternate>
                         case "if" -> {
                             // <test>
-                            gen(exp.list.get(1));
+                            gen(ast.child(exp, 1));
                             emit(OpCodes.OP_JMP_IF_FALSE);
                             emit(/*address to patch*/0);
 
                             final int elseJmpAddr = getOffset() - 1;
 
                             // <consequent>
-                            gen(exp.list.get(2));
+                            gen(ast.child(exp, 2));
                             emit(OpCodes.OP_JMP);
                             emit(/*address to patch*/0);
                             final int endAddr = getOffset() - 1;
                             final int elseBranchAddr = getOffset();
                             pathJmpAddr(elseJmpAddr, elseBranchAddr);
 
-                            // <alternate>
-                            if (exp.list.size() == 4) {
-                                gen(exp.list.get(3));
+                            // <alternate>, void when there is none, so both branches push a value
+                            if (ast.size(exp) == 4) {
+                                gen(ast.child(exp, 3));
+                            } else {
+                                genVoid();
                             }
                             final int endBranchAddr = getOffset();
                             pathJmpAddr(endAddr, endBranchAddr);
@@ -76,17 +106,17 @@ public class Compiler {
                         case "var" -> {
 
                             // global vars
-                            final var varName = exp.list.get(1).string;
+                            final var varName = ast.string(ast.child(exp, 1));
 
-                            if (isLambda(exp.list.get(2))) {
+                            if (isLambda(ast.child(exp, 2))) {
                                 compileFunction(
-                                        exp.list.get(2),
+                                        ast.child(exp, 2),
                                         varName,
-                                        exp.list.get(2).list.get(1).list,
-                                        exp.list.get(2).list.get(2)
+                                        ast.child(ast.child(exp, 2), 1),
+                                        ast.child(ast.child(exp, 2), 2)
                                 );
                             } else {
-                                gen(exp.list.get(2));
+                                gen(ast.child(exp, 2));
                             }
 
                             if (isGlobalScope()) {
@@ -98,10 +128,10 @@ public class Compiler {
                             }
                         }
                         case "set" -> {
-                            final var varName = exp.list.get(1).string;
+                            final var varName = ast.string(ast.child(exp, 1));
                             final var localIdx = co.getLocalIdx(varName);
                             if (localIdx != -1) {
-                                gen(exp.list.get(2));
+                                gen(ast.child(exp, 2));
                                 emit(OpCodes.OP_SET_LOCAL);
                                 emit(localIdx);
                             } else {
@@ -110,7 +140,7 @@ public class Compiler {
                                 if (varIdx == -1) {
                                     throw new IllegalStateException("variable '%s' is not defined".formatted(varName));
                                 }
-                                gen(exp.list.get(2));
+                                gen(ast.child(exp, 2));
                                 emit(OpCodes.OP_SET_GLOBAL);
                                 emit(varIdx);
                             }
@@ -118,10 +148,10 @@ public class Compiler {
 
                         case "begin" -> {
                             scopeEnter();
-                            for (int i = 1; i < exp.list.size(); i++) {
-                                boolean isLast = i == exp.list.size() - 1;
-                                boolean isLocalDeclaration = isDeclaration(exp.list.get(i)) && !isGlobalScope();
-                                gen(exp.list.get(i));
+                            for (int i = 1; i < ast.size(exp); i++) {
+                                boolean isLast = i == ast.size(exp) - 1;
+                                boolean isLocalDeclaration = isDeclaration(ast.child(exp, i)) && !isGlobalScope();
+                                gen(ast.child(exp, i));
                                 if (!isLast && !isLocalDeclaration) {
                                     emit(OpCodes.OP_POP);
                                 }
@@ -130,43 +160,43 @@ public class Compiler {
                         }
                         case "while" -> {
                             final int loopStartAddr = getOffset();
-                            gen(exp.list.get(1));
+                            gen(ast.child(exp, 1));
                             emit(OpCodes.OP_JMP_IF_FALSE);
                             emit(0);
                             final int loopEndJmpAddr = getOffset() - 1;
 
-                            gen(exp.list.get(2));
+                            genLoopStatement(ast.child(exp, 2));
 
                             emit(OpCodes.OP_JMP);
                             emit(0);
                             pathJmpAddr(getOffset() - 1, loopStartAddr);
 
-                            final int loopEndAdrr = getOffset() + 1;
-                            pathJmpAddr(loopEndJmpAddr, loopEndAdrr);
+                            pathJmpAddr(loopEndJmpAddr, getOffset());
+                            genVoid();
                         }
 
                         case "for" -> {
                             //convert to while loop
-                            gen(exp.list.get(1));
+                            genLoopStatement(ast.child(exp, 1));
                             final int loopStartAddr = getOffset();
-                            gen(exp.list.get(2));
+                            gen(ast.child(exp, 2));
                             emit(OpCodes.OP_JMP_IF_FALSE);
                             emit(0);
                             final int loopEndJmpAddr = getOffset() - 1;
 
-                            gen(exp.list.get(3));
-                            gen(exp.list.get(4));
+                            genLoopStatement(ast.child(exp, 3));
+                            genLoopStatement(ast.child(exp, 4));
                             emit(OpCodes.OP_JMP);
                             emit(0);
                             pathJmpAddr(getOffset() - 1, loopStartAddr);
 
-                            final int loopEndAdrr = getOffset() + 1;
-                            pathJmpAddr(loopEndJmpAddr, loopEndAdrr);
+                            pathJmpAddr(loopEndJmpAddr, getOffset());
+                            genVoid();
                         }
                         case "def" -> {
-                            final var fnName = exp.list.get(1).string;
-                            final var params = exp.list.get(2).list;
-                            final var body = exp.list.get(3);
+                            final var fnName = ast.string(ast.child(exp, 1));
+                            final var params = ast.child(exp, 2);
+                            final var body = ast.child(exp, 3);
 
                             compileFunction(exp, fnName, params, body);
 
@@ -179,8 +209,8 @@ public class Compiler {
                             }
                         }
                         case "lambda" -> {
-                            final var params = exp.list.get(1).list;
-                            final var body = exp.list.get(2);
+                            final var params = ast.child(exp, 1);
+                            final var body = ast.child(exp, 2);
 
                             compileFunction(exp, "lambda", params, body);
                         }
@@ -192,12 +222,13 @@ public class Compiler {
                 }
             }
             case SYMBOL -> {
-                if (exp.string.equals("true") || exp.string.equals("false")) {
+                final var name = ast.string(exp);
+                if (name.equals("true") || name.equals("false")) {
                     emit(OpCodes.OP_CONST);
-                    emit(booleanConstIdx(exp.string.equals("true")));
+                    emit(booleanConstIdx(name.equals("true")));
                 } else {
                     //variables
-                    final var varName = exp.string;
+                    final var varName = name;
                     final var localIdx = co.getLocalIdx(varName);
                     if (localIdx != -1) {
                         emit(OpCodes.OP_GET_LOCAL);
@@ -215,25 +246,45 @@ public class Compiler {
         }
     }
 
-    private boolean isLambda(Exp exp) {
+    /**
+     * Loop parts are evaluated for side effects only, so their values are dropped
+     * to keep the stack balanced across iterations. Local declarations stay on
+     * the stack as the variable slot.
+     */
+    private void genLoopStatement(int exp) {
+        gen(exp);
+        if (!(isDeclaration(exp) && !isGlobalScope())) {
+            emit(OpCodes.OP_POP);
+        }
+    }
+
+    // loops evaluate to void
+    private void genVoid() {
+        emit(OpCodes.OP_CONST);
+        emit(constIdx(Value.VOID));
+    }
+
+    private boolean isLambda(int exp) {
         return isTaggedList(exp, "lambda");
     }
 
-    private void functionCall(Exp exp) {
+    private void functionCall(int exp) {
         //push function onto the stack
-        gen(exp.list.getFirst());
+        gen(ast.child(exp, 0));
         // push arguments
-        for (int i = 1; i < exp.list.size(); i++) {
-            gen(exp.list.get(i));
+        for (int i = 1; i < ast.size(exp); i++) {
+            gen(ast.child(exp, i));
         }
 
         emit(OpCodes.OP_CALL);
-        emit(exp.list.size() - 1);
+        emit(ast.size(exp) - 1);
     }
 
-    private void compileFunction(Exp exp, String fnName, List<Exp> params, Exp body) {
-        int arity = params.size();
+    private void compileFunction(int exp, String fnName, int params, int body) {
+        int arity = ast.size(params);
         final CodeObj prevCo = co;
+        final Map<Value, Integer> prevConstIndex = constIndex;
+        constIndex = new HashMap<>();
         //function code object
         final Value coValue = createCodeObjValue(fnName, arity);
         co = Value.asCode(coValue);
@@ -242,7 +293,7 @@ public class Compiler {
         co.addLocal(fnName);
 
         for (int i = 0; i < arity; i++) {
-            final String argName = params.get(i).string;
+            final String argName = ast.string(ast.child(params, i));
             co.addLocal(argName);
         }
 
@@ -257,30 +308,155 @@ public class Compiler {
 
         final FunctionObj fn = new FunctionObj(co);
         co = prevCo;
+        constIndex = prevConstIndex;
         co.addConst(new Value(ValueTypes.FUNCTION, fn));
         emit(OpCodes.OP_CONST);
         emit(co.constants().size() - 1);
     }
 
+    private void finishCodeObj(CodeObj co) {
+        BytecodeOptimizer.optimize(co, optimization);
+        markTailCalls(co);
+        SuperinstructionSelector.select(co);
+        co.bytecode().setMaxStack(StackDepthAnalyzer.maxStack(co));
+        co.freeze();
+    }
+
+    /**
+     * A global that is set in one place only, by a function definition on the
+     * unconditional path of main, always holds that function once the definition
+     * ran. It is bound to the
+     * function when the program is linked, and reads of it load the function as
+     * a constant, so calls through it need no global lookup. Globals of the vm
+     * (natives and host variables) are not bound, they differ between vms.
+     */
+    private void bindConstantFunctions() {
+        final int[] sets = new int[global.globals().size()];
+        final Map<Integer, Value> defined = new HashMap<>();
+        for (var c : codeObjs) {
+            final List<Instruction> in = Instruction.decode(c.bytecode().code(), c.bytecode().size());
+            final boolean[] unconditional = c == main.co() ? unconditional(in) : null;
+            for (int i = 0; i < in.size(); i++) {
+                final Instruction instruction = in.get(i);
+                if (instruction.opcode != OpCodes.OP_SET_GLOBAL) {
+                    continue;
+                }
+                final int globalIdx = instruction.operands[0];
+                sets[globalIdx]++;
+                if (unconditional != null && unconditional[i] && i > 0 && !instruction.jumpTarget
+                        && in.get(i - 1).opcode == OpCodes.OP_CONST) {
+                    final Value value = c.constants().get(in.get(i - 1).operands[0]);
+                    if (value.type() == ValueTypes.FUNCTION) {
+                        defined.put(globalIdx, value);
+                    }
+                }
+            }
+        }
+
+        final Map<Integer, Value> bound = new HashMap<>();
+        defined.forEach((globalIdx, fn) -> {
+            if (sets[globalIdx] == 1 && globalIdx >= envSize) {
+                global.set(globalIdx, fn);
+                bound.put(globalIdx, fn);
+            }
+        });
+        if (bound.isEmpty()) {
+            return;
+        }
+
+        for (var c : codeObjs) {
+            final Bytecode code = c.bytecode();
+            final Map<Value, Integer> fnConsts = new IdentityHashMap<>();
+            int offset = 0;
+            while (offset < code.size()) {
+                final int opcode = code.get(offset);
+                if (opcode == OpCodes.OP_GET_GLOBAL) {
+                    final Value fn = bound.get(code.get(offset + 1));
+                    if (fn != null) {
+                        code.set(offset, OpCodes.OP_CONST);
+                        code.set(offset + 1, fnConsts.computeIfAbsent(fn, v -> {
+                            c.addConst(v);
+                            return c.constants().size() - 1;
+                        }));
+                    }
+                }
+                offset += 1 + OpCodes.operandsCount(opcode);
+            }
+        }
+    }
+
+    // instructions not skipped by any forward jump, they run whenever the code does. Backward jumps
+    // close loops and the condition of a loop runs at least once
+    private static boolean[] unconditional(List<Instruction> in) {
+        final Map<Instruction, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < in.size(); i++) {
+            index.put(in.get(i), i);
+        }
+        final boolean[] unconditional = new boolean[in.size()];
+        Arrays.fill(unconditional, true);
+        for (int i = 0; i < in.size(); i++) {
+            final Instruction target = in.get(i).target;
+            if (target != null) {
+                Arrays.fill(unconditional, i + 1, Math.max(i + 1, index.get(target)), false);
+            }
+        }
+        return unconditional;
+    }
+
+    /**
+     * A call followed only by jumps and SCOPE_EXITs up to RETURN is in tail
+     * position: its result is the result of the function, so it becomes
+     * TAIL_CALL, which reuses the frame instead of pushing a new one.
+     */
+    private static void markTailCalls(CodeObj co) {
+        final Bytecode code = co.bytecode();
+        int offset = 0;
+        while (offset < code.size()) {
+            final int opcode = code.get(offset);
+            final int next = offset + 1 + OpCodes.operandsCount(opcode);
+            if (opcode == OpCodes.OP_CALL && returnsAt(code, next)) {
+                code.set(offset, OpCodes.OP_TAIL_CALL);
+            }
+            offset = next;
+        }
+    }
+
+    private static boolean returnsAt(Bytecode code, int offset) {
+        // a jump chain is never longer than the code, a longer one is a loop
+        for (int steps = 0; steps < code.size() && offset < code.size(); steps++) {
+            switch (code.get(offset)) {
+                case OpCodes.OP_RETURN -> {
+                    return true;
+                }
+                case OpCodes.OP_JMP -> offset = code.get(offset + 1);
+                case OpCodes.OP_SCOPE_EXIT -> offset += 2;
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
     private Value createCodeObjValue(String name, int arity) {
         final CodeObj co = CodeObj.newCo(name, arity);
         codeObjs.add(co);
         return Value.code(co);
     }
 
-    private boolean isDeclaration(final Exp exp) {
+    private boolean isDeclaration(final int exp) {
         return isVarDeclaration(exp);
     }
 
-    private boolean isVarDeclaration(final Exp exp) {
+    private boolean isVarDeclaration(final int exp) {
         return isTaggedList(exp, "var");
     }
 
-    private boolean isTaggedList(final Exp exp, final String tag) {
-        return exp.type == ExpType.LIST && !exp.list.isEmpty() && exp.list.getFirst().type == ExpType.SYMBOL && exp.list.getFirst().string.equals(tag);
+    private boolean isTaggedList(final int exp, final String tag) {
+        return ast.type(exp) == ExpType.LIST && ast.size(exp) > 0 && ast.type(ast.child(exp, 0)) == ExpType.SYMBOL && ast.string(ast.child(exp, 0)).equals(tag);
     }
 
-    private boolean isBlock(final Exp exp) {
+    private boolean isBlock(final int exp) {
         return isTaggedList(exp, "begin");
     }
 
@@ -310,7 +486,7 @@ public class Compiler {
 
         while (!co.locals().isEmpty() && co.locals().getLast().scopeLevel() == co.scopeLevel().value()) {
             count++;
-            co.locals().removeLast();
+            co.removeLastLocal();
         }
 
         return count;
@@ -332,55 +508,56 @@ public class Compiler {
         return co.bytecode().size();
     }
 
-    void genCompareOp(Exp exp, int compareCode) {
-        gen(exp.list.get(1));
-        gen(exp.list.get(2));
+    void genCompareOp(int exp, int compareCode) {
+        gen(ast.child(exp, 1));
+        gen(ast.child(exp, 2));
         emit(OpCodes.OP_COMPARE);
         emit(compareCode);
     }
 
-    void genBinaryOp(Exp exp, int opCode) {
-        gen(exp.list.get(1));
-        gen(exp.list.get(2));
+    void genBinaryOp(int exp, int opCode) {
+        gen(ast.child(exp, 1));
+        gen(ast.child(exp, 2));
         emit(opCode);
     }
 
-    <T> int constIdx(ValueTypes type, Function<Value, T> asFn, T val, Function<T, Value> convertFn) {
-        for (int i = 0; i < co.constants().size(); i++) {
-            if (co.constants().get(i).type() != type) {
-                continue;
-            }
-
-            final T existed = asFn.apply(co.constants().get(i));
-            if (existed.equals(val)) {
-                return i;
-            }
+    /**
+     * Index of the literal in the constants of the current code object, equal
+     * literals are added once. Values of literals compare by type and value.
+     */
+    int constIdx(Value val) {
+        final Integer existed = constIndex.get(val);
+        if (existed != null) {
+            return existed;
         }
 
-        co.constants().add(convertFn.apply(val));
-        return co.constants().size() - 1;
+        co.addConst(val);
+        final int idx = co.constants().size() - 1;
+        constIndex.put(val, idx);
+        return idx;
     }
 
     int booleanConstIdx(boolean val) {
-        return constIdx(ValueTypes.BOOLEAN, Value::asBoolean, val, Value::bool);
+        return constIdx(Value.bool(val));
     }
 
     int numConstIdx(long num) {
-        return constIdx(ValueTypes.NUMBER, Value::asNumber, num, Value::number);
+        return constIdx(Value.number(num));
     }
 
     int stringConstIdx(String s) {
-        return constIdx(ValueTypes.STRING, Value::asString, s, Value::string);
+        if (sharedStrings == null) {
+            return constIdx(Value.string(s));
+        }
+        return constIdx(sharedStrings.computeIfAbsent(s, Value::string));
     }
 
     void emit(int byteVal) {
         co.bytecode().add(byteVal);
     }
 
-    public void disassemble() {
-        for (var co : codeObjs) {
-            disassembler.printDisassemble(co);
-        }
+    public List<CodeObj> getCodeObjs() {
+        return codeObjs;
     }
 
     public static final int CMP_GREAT_CODE = 1;
@@ -402,15 +579,29 @@ public class Compiler {
         };
     }
 
+    Ast ast;
     CodeObj co;
+    // literals of co, value to constant index
+    Map<Value, Integer> constIndex = new HashMap<>();
+    // one value for each distinct string literal of the program, null when not shared
+    final Map<String, Value> sharedStrings;
+    final OptimizationLevel optimization;
+    final int inlineBudget;
     Global global;
+    // globals before envSize come from the vm, not from the program
+    final int envSize;
     List<CodeObj> codeObjs = new ArrayList<>();
     FunctionObj main;
 
-    final Disassembler disassembler;
+    public Compiler(Global global) {
+        this(global, VmOptions.defaults());
+    }
 
-    public Compiler(Global global, Disassembler disassembler) {
+    public Compiler(Global global, VmOptions options) {
         this.global = global;
-        this.disassembler = disassembler;
+        this.envSize = global.globals().size();
+        this.sharedStrings = options.shareStrings() ? new HashMap<>() : null;
+        this.optimization = options.optimization();
+        this.inlineBudget = options.inlineBudget();
     }
 }
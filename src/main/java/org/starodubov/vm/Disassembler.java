@@ -4,52 +4,106 @@ import org.apache.commons.lang3.StringUtils;
 import org.starodubov.vm.utils.DebugArrayList;
 import org.starodubov.vm.value.CodeObj;
 
+import java.io.PrintStream;
+
 import static org.starodubov.vm.OpCodes.*;
 
 public class Disassembler {
 
     void printDisassemble(CodeObj co) {
-        System.out.printf("---------------Disassembly: %s ----------------------%n", co.name());
-        System.out.println("constants= " + co.constants());
-        System.out.println(global);
-        System.out.printf("%s%10s%30s\n", "offset", "bytes", "opcode");
+        out.printf("---------------Disassembly: %s ----------------------%n", co.name());
+        out.println("constants= " + co.constants());
+        out.println(global);
+        out.printf("%s%10s%30s\n", "offset", "bytes", "opcode");
         int offset = 0;
         while (offset < co.bytecode().size()) {
             offset = disassembleInstruction(co, offset);
         }
-        System.out.println();
+        out.println();
     }
 
     private int disassembleInstruction(CodeObj co, int offset) {
         final var opcode = co.bytecode().get(offset);
         return switch (opcode) {
             case OP_JMP_IF_FALSE, OP_JMP -> disassembleJmp(co, opcode, offset);
-            case OP_COMPARE -> disassembleCompare(co, opcode, offset);
-            case OP_HALT, OP_ADD, OP_SUB, OP_DIV, OP_MUL, OP_POP, OP_RETURN -> disassembleSimple(co, opcode, offset);
+            case OP_COMPARE, OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM ->
+                    disassembleCompare(co, opcode, offset);
+            case OP_HALT, OP_ADD, OP_SUB, OP_DIV, OP_MUL, OP_POP, OP_RETURN, OP_ADD_NUM, OP_ADD_STR ->
+                    disassembleSimple(co, opcode, offset);
             case OP_CONST -> disassembleConst(co, opcode, offset);
             case OP_SET_GLOBAL, OP_GET_GLOBAL -> disassembleGlobal(co, opcode, offset);
             case OP_SET_LOCAL, OP_GET_LOCAL -> disassembleLocal(co, opcode, offset);
-            case OP_SCOPE_EXIT, OP_CALL -> disassembleWord(co, opcode, offset);
+            case OP_SCOPE_EXIT, OP_CALL, OP_TAIL_CALL -> disassembleWord(co, opcode, offset);
+            case OP_CMP_JMP_IF_FALSE -> disassembleCompareJmp(co, opcode, offset);
+            case OP_INC_LOCAL -> disassembleIncLocal(co, opcode, offset);
+            case OP_INC_GLOBAL -> disassembleIncGlobal(co, opcode, offset);
+            case OP_ADD_LOCALS -> disassembleAddLocals(co, opcode, offset);
+            case OP_ADD_CONST, OP_SUB_CONST -> disassembleConst(co, opcode, offset);
             default -> throw new IllegalStateException("Unexpected opcode: " + opcode);
         };
     }
 
+    private int disassembleCompareJmp(CodeObj co, int opcode, int offset) {
+        out.println(
+                align(offsetToStr(offset), bytesToStr(co, offset, 2) + " " + offsetToStr(co.bytecode().get(offset + 2)),
+                        opcodeToString(opcode)) +
+                        " (%s)".formatted(Compiler.compareToString(co.bytecode().get(offset + 1)))
+        );
+        return offset + 3;
+    }
+
+    private int disassembleIncLocal(CodeObj co, int opcode, int offset) {
+        out.println(
+                align(offsetToStr(offset), bytesToStr(co, offset, 3), opcodeToString(opcode)) +
+                        " (%s += %s)".formatted(localName(co, co.bytecode().get(offset + 1)), constToStr(co, offset + 2))
+        );
+        return offset + 3;
+    }
+
+    private int disassembleIncGlobal(CodeObj co, int opcode, int offset) {
+        out.println(
+                align(offsetToStr(offset), bytesToStr(co, offset, 3), opcodeToString(opcode)) +
+                        " (%s += %s)".formatted(global.get(co.bytecode().get(offset + 1)).name, constToStr(co, offset + 2))
+        );
+        return offset + 3;
+    }
+
+    private int disassembleAddLocals(CodeObj co, int opcode, int offset) {
+        out.println(
+                align(offsetToStr(offset), bytesToStr(co, offset, 3), opcodeToString(opcode)) +
+                        " (%s + %s)".formatted(localName(co, co.bytecode().get(offset + 1)),
+                                localName(co, co.bytecode().get(offset + 2)))
+        );
+        return offset + 3;
+    }
+
+    private String localName(CodeObj co, int localIdx) {
+        if (co.locals() instanceof DebugArrayList<LocalVar>) {
+            return co.locals().get(localIdx).name();
+        }
+        return "local " + localIdx;
+    }
+
+    private Object constToStr(CodeObj co, int operandOffset) {
+        return co.constants().get(co.bytecode().get(operandOffset)).obj();
+    }
+
     private int disassembleLocal(CodeObj co, int opcode, int offset) {
-        final var out = new StringBuilder(
+        final var line = new StringBuilder(
                   align(offsetToStr(offset), bytesToStr(co, offset, 2), opcodeToString(opcode))
                 );
 
         if (co.locals() instanceof DebugArrayList<LocalVar>) {
-            out.append(" (%s)".formatted(co.locals().get(co.bytecode().get(offset + 1)).name()));
+            line.append(" (%s)".formatted(co.locals().get(co.bytecode().get(offset + 1)).name()));
         }
 
-        System.out.println(out);
+        out.println(line);
 
         return offset + 2;
     }
 
     private int disassembleGlobal(CodeObj co, int opcode, int offset) {
-        System.out.println(
+        out.println(
                 align(offsetToStr(offset), bytesToStr(co, offset, 2), opcodeToString(opcode)) +
                         " (%s)".formatted(global.get(co.bytecode().get(offset + 1)).name)
         );
@@ -60,7 +114,7 @@ public class Disassembler {
         final var sOffset = offsetToStr(offset);
         final var sBytes = printByteAndAddr(co, offset);
         final var sOpcode = OpCodes.opcodeToString(opcode);
-        System.out.println(align(sOffset, sBytes, sOpcode));
+        out.println(align(sOffset, sBytes, sOpcode));
         return offset + 2;
     }
 
@@ -74,7 +128,7 @@ public class Disassembler {
         final var sOffset = offsetToStr(offset);
         final var sBytes = bytesToStr(co, offset, 2);
         final var sOpcode = OpCodes.opcodeToString(opcode);
-        System.out.println(
+        out.println(
                 align(sOffset, sBytes, sOpcode) +
                         " (%s)".formatted(Compiler.compareToString(co.bytecode().get(offset + 1)))
 
@@ -86,7 +140,7 @@ public class Disassembler {
         final var sOffset = offsetToStr(offset);
         final var sBytes = bytesToStr(co, offset, 2);
         final var sOpcode = OpCodes.opcodeToString(opcode);
-        System.out.println(align(sOffset, sBytes, sOpcode));
+        out.println(align(sOffset, sBytes, sOpcode));
         return offset + 2;
     }
 
@@ -94,7 +148,7 @@ public class Disassembler {
         final var sOffset = offsetToStr(offset);
         final var sBytes = bytesToStr(co, offset, 2);
         final var sOpcode = OpCodes.opcodeToString(opcode);
-        System.out.println(
+        out.println(
                 align(sOffset, sBytes, sOpcode) +
                         " (%s)".formatted(co.constants().get(co.bytecode().get(offset + 1)).obj()));
         return offset + 2;
@@ -104,7 +158,7 @@ public class Disassembler {
         final var sOffset = offsetToStr(offset);
         final var sBytes = bytesToStr(co, offset, 1);
         final var sOpcode = OpCodes.opcodeToString(opcode);
-        System.out.println(align(sOffset, sBytes, sOpcode));
+        out.println(align(sOffset, sBytes, sOpcode));
         return offset + 1;
     }
 
@@ -132,7 +186,14 @@ public class Disassembler {
 
     private final Global global;
 
+    private final PrintStream out;
+
     public Disassembler(Global global) {
+        this(global, System.out);
+    }
+
+    public Disassembler(Global global, PrintStream out) {
         this.global = global;
+        this.out = out;
     }
 }
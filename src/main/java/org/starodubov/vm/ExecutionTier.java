@@ -0,0 +1,8 @@
+package org.starodubov.vm;
+
+public enum ExecutionTier {
+    // switch over the bytecode, with quickening
+    INTERPRETER,
+    // bytecode translated once per function into pre-decoded nodes
+    CLOSURE
+}
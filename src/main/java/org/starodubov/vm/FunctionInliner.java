@@ -0,0 +1,223 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.Value;
+import org.starodubov.vm.value.ValueTypes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * Replaces calls of small functions with their code. A call site is
+ * <pre>
+ * CONST fn, &lt;arguments&gt;, CALL n
+ * </pre>
+ * which is what calls of a global function defined once compile to after the
+ * compiler bound it. The callee stays in its slot and the arguments in theirs,
+ * so the callee's code works on the caller's frame with every local slot
+ * shifted by the slot of the callee, and its final SCOPE_EXIT leaves the result
+ * in place of the callee, as a return would. Its RETURN becomes the end of the
+ * inlined code.
+ * <p>
+ * A function is inlined if its code fits the budget, it takes as many
+ * arguments as passed, it does not refer to itself (local 0, so recursive
+ * functions are never inlined) and it returns with only the result left in
+ * its frame. Callees are inlined with their code as generated, one level deep.
+ */
+final class FunctionInliner {
+
+    // code of the functions which can be inlined, as generated
+    private final Map<CodeObj, List<Instruction>> inlinable = new IdentityHashMap<>();
+
+    private final int budget;
+
+    private FunctionInliner(int budget) {
+        this.budget = budget;
+    }
+
+    static void inline(List<CodeObj> codeObjs, int budget) {
+        if (budget <= 0) {
+            return;
+        }
+        final var inliner = new FunctionInliner(budget);
+        for (var co : codeObjs) {
+            if (inliner.canInline(co)) {
+                inliner.inlinable.put(co, Instruction.decode(co.bytecode().code(), co.bytecode().size()));
+            }
+        }
+        for (var co : codeObjs) {
+            inliner.inlineCalls(co);
+        }
+    }
+
+    private void inlineCalls(CodeObj caller) {
+        final List<Instruction> in = Instruction.decode(caller.bytecode().code(), caller.bytecode().size());
+        final int[] depths = StackDepthAnalyzer.depths(caller);
+        final int[] offsets = new int[in.size()];
+        for (int i = 1; i < in.size(); i++) {
+            offsets[i] = offsets[i - 1] + in.get(i - 1).length();
+        }
+
+        // CALL instruction index -> inlined callee and the slot it is in
+        final Map<Integer, CodeObj> callees = new HashMap<>();
+        final Map<Integer, Integer> slots = new HashMap<>();
+        for (int i = 0; i < in.size(); i++) {
+            final Instruction instruction = in.get(i);
+            if (instruction.opcode != OP_CONST || depths[offsets[i]] == -1) {
+                continue;
+            }
+            final Value value = caller.constants().get(instruction.operands[0]);
+            if (value.type() != ValueTypes.FUNCTION) {
+                continue;
+            }
+            final CodeObj callee = Value.asFuntion(value).co();
+            final int slot = depths[offsets[i]];
+            final int call = consumerOf(in, depths, offsets, i, slot);
+            if (call != -1 && in.get(call).opcode == OP_CALL && in.get(call).operands[0] == callee.arity()
+                    && depths[offsets[call]] == slot + 1 + callee.arity() && callee != caller && inlinable.containsKey(callee)) {
+                callees.put(call, callee);
+                slots.put(call, slot);
+            }
+        }
+        if (callees.isEmpty()) {
+            return;
+        }
+
+        final List<Instruction> out = new ArrayList<>(in.size());
+        final Map<Value, Integer> constants = new HashMap<>();
+        for (int i = 0; i < in.size(); i++) {
+            final CodeObj callee = callees.get(i);
+            if (callee == null) {
+                out.add(in.get(i));
+            } else {
+                splice(out, in.get(i), in.get(i + 1), caller, callee, slots.get(i), constants);
+            }
+        }
+        caller.bytecode().replace(Instruction.encode(out));
+    }
+
+    /**
+     * @return index of the first instruction after {@code from} that leaves no
+     * more than the value at {@code slot} on the stack, it is the call when the
+     * value is called, -1 if control flow leaves first
+     */
+    private static int consumerOf(List<Instruction> in, int[] depths, int[] offsets, int from, int slot) {
+        for (int i = from + 1; i < in.size() - 1; i++) {
+            final Instruction instruction = in.get(i);
+            final int depth = depths[offsets[i]];
+            if (depth == -1 || instruction.opcode == OP_RETURN || instruction.opcode == OP_HALT) {
+                return -1;
+            }
+            final int[] code = new int[1 + instruction.operands.length];
+            code[0] = instruction.opcode;
+            System.arraycopy(instruction.operands, 0, code, 1, instruction.operands.length);
+            if (depth + StackDepthAnalyzer.effect(instruction.opcode, code, 0) <= slot + 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean canInline(CodeObj callee) {
+        if (callee.bytecode().size() > budget) {
+            return false;
+        }
+        final List<Instruction> code = Instruction.decode(callee.bytecode().code(), callee.bytecode().size());
+        if (code.size() < 2 || code.get(code.size() - 2).opcode != OP_RETURN) {
+            return false;
+        }
+        // calls itself through the global it is bound to
+        for (var c : callee.constants()) {
+            if (c.type() == ValueTypes.FUNCTION && Value.asFuntion(c).co() == callee) {
+                return false;
+            }
+        }
+        for (int i = 0; i < code.size() - 2; i++) {
+            final Instruction instruction = code.get(i);
+            switch (instruction.opcode) {
+                case OP_RETURN, OP_HALT -> {
+                    return false;
+                }
+                case OP_GET_LOCAL, OP_SET_LOCAL -> {
+                    if (instruction.operands[0] == 0) {
+                        return false;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        // only the result is left when it returns
+        final int[] depths = StackDepthAnalyzer.depths(callee);
+        return depths[callee.bytecode().size() - code.get(code.size() - 2).length()] == 1;
+    }
+
+    /**
+     * Appends the callee's code in place of the call. The call instruction is
+     * reused as the first one, so jumps to the call land on the inlined code.
+     */
+    private void splice(List<Instruction> out, Instruction call, Instruction next, CodeObj caller,
+                        CodeObj callee, int slot, Map<Value, Integer> constants) {
+        final List<Instruction> code = inlinable.get(callee);
+        final Map<Instruction, Instruction> copies = new IdentityHashMap<>();
+        final List<Instruction> body = new ArrayList<>(code.size());
+        // without RETURN and the END marker
+        for (int i = 0; i < code.size() - 2; i++) {
+            final Instruction original = code.get(i);
+            final Instruction copy = i == 0 ? call : new Instruction(original.opcode);
+            copy.opcode = original.opcode;
+            copy.operands = original.operands.clone();
+            copy.target = original.target;
+            switch (copy.opcode) {
+                case OP_GET_LOCAL, OP_SET_LOCAL -> copy.operands[0] += slot;
+                case OP_CONST -> copy.operands[0] = constIdx(caller, callee.constants().get(copy.operands[0]), constants);
+                default -> {
+                }
+            }
+            copies.put(original, copy);
+            body.add(copy);
+        }
+        // RETURN goes on with the instruction after the call
+        copies.put(code.get(code.size() - 2), next);
+        for (var copy : body) {
+            if (copy.target != null) {
+                copy.target = copies.get(copy.target);
+                copy.target.jumpTarget = true;
+            }
+        }
+        out.addAll(body);
+    }
+
+    private static int constIdx(CodeObj co, Value value, Map<Value, Integer> constants) {
+        final boolean literal = value.type() == ValueTypes.NUMBER || value.type() == ValueTypes.STRING
+                || value.type() == ValueTypes.BOOLEAN;
+        if (literal) {
+            final Integer existed = constants.get(value);
+            if (existed != null) {
+                return existed;
+            }
+            for (int i = 0; i < co.constants().size(); i++) {
+                if (co.constants().get(i).equals(value)) {
+                    constants.put(value, i);
+                    return i;
+                }
+            }
+        } else {
+            for (int i = 0; i < co.constants().size(); i++) {
+                if (co.constants().get(i) == value) {
+                    return i;
+                }
+            }
+        }
+        co.addConst(value);
+        if (literal) {
+            constants.put(value, co.constants().size() - 1);
+        }
+        return co.constants().size() - 1;
+    }
+}
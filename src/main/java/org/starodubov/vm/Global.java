@@ -1,14 +1,40 @@
 package org.starodubov.vm;
+import org.starodubov.vm.value.NativeFn;
 import org.starodubov.vm.value.NativeObj;
 import org.starodubov.vm.value.Value;
 import org.starodubov.vm.value.ValueTypes;
 
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Global variables in definition order, a variable's position is its index in
+ * OP_GET_GLOBAL and OP_SET_GLOBAL. Names are looked up through a hash index.
+ */
 public record Global(
-        List<GlobalVar> globals
+        List<GlobalVar> globals,
+        Map<String, Integer> index
 ) {
 
+    public Global(List<GlobalVar> globals) {
+        this(globals, new HashMap<>());
+        for (int i = 0; i < globals.size(); i++) {
+            index.putIfAbsent(globals.get(i).name, i);
+        }
+    }
+
+    // copy with its own variables, changing it does not affect this one
+    public Global copy() {
+        final List<GlobalVar> vars = new ArrayList<>(globals.size());
+        for (var v : globals) {
+            vars.add(new GlobalVar(v.name, v.value));
+        }
+        return new Global(vars, new HashMap<>(index));
+    }
+
     public GlobalVar get(int idx) {
         return globals.get(idx);
     }
@@ -22,54 +48,68 @@ public record Global(
             return;
         }
 
-        globals.add(new GlobalVar(name, value));
+        add(new GlobalVar(name, value));
     }
 
     public void addConst(GlobalVar... vars) {
        for (var v : vars) {
            if (!exist(v.name)) {
-               globals.add(v);
+               add(v);
            }
        }
     }
 
     public boolean exist(String name) {
-        for (var v : globals) {
-            if (v.name.equals(name)) {
-                return true;
-            }
-        }
-        return false;
+        return index.containsKey(name);
     }
 
     public int getGlobalIdx(String name) {
-        if (globals.isEmpty()) {
-            return -1;
-        }
-
-        for (int i = 0; i < globals.size(); i++) {
-            if (globals.get(i).name.equals(name)) {
-                return i;
-            }
-        }
-
-        return -1;
+        return index.getOrDefault(name, -1);
     }
 
     public void define(String name) {
-        final var idx = getGlobalIdx(name);
-        if (idx != -1) {
+        if (exist(name)) {
             return;
         }
 
-        globals.add(new GlobalVar(name, Value.number(0)));
+        add(new GlobalVar(name, Value.number(0)));
     }
 
+    // native working on the vm stack, see NativeFn.StackFn
     public void addNativeFunction(final String name, final Runnable fn, final int arity) {
+        addNative(name, arity, new NativeFn.StackFn(fn));
+    }
+
+    public void addNative(final String name, final int arity, final NativeFn fn) {
+        final boolean fits = switch (fn) {
+            case NativeFn.Fn0 f -> arity == 0;
+            case NativeFn.Fn1 f -> arity == 1;
+            case NativeFn.Fn2 f -> arity == 2;
+            case NativeFn.FnN f -> arity >= 0;
+            case NativeFn.StackFn f -> arity >= 0;
+        };
+        if (!fits) {
+            throw new IllegalArgumentException("native '%s' cannot take %d arguments".formatted(name, arity));
+        }
         if (exist(name)) {
             return;
         }
 
-        globals.add(new GlobalVar(name, new Value(ValueTypes.NATIVE, new NativeObj(name, fn, arity))));
+        add(new GlobalVar(name, new Value(ValueTypes.NATIVE, new NativeObj(name, fn, arity))));
+    }
+
+    /**
+     * Adds every static method of the class the lookup can access as a native
+     * named after the method, see {@link NativeMethods}.
+     */
+    public void addNatives(final MethodHandles.Lookup lookup, final Class<?> owner) {
+        for (var m : NativeMethods.of(lookup, owner)) {
+            addNative(m.getName(), m.getParameterCount(), NativeMethods.fn(lookup, m));
+        }
+    }
+
+    private void add(GlobalVar v) {
+        index.put(v.name, globals.size());
+        globals.add(v);
     }
 }
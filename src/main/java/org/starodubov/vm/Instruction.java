@@ -0,0 +1,101 @@
+package org.starodubov.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded instruction used by the compiler passes that rewrite bytecode.
+ * Jumps reference their target instruction instead of an offset, so
+ * instructions can be replaced, inserted or removed and the code re-encoded
+ * with relocated addresses.
+ */
+final class Instruction {
+
+    // pseudo opcode of the marker standing for the offset right after the code
+    static final int END = -1;
+
+    int opcode;
+
+    int[] operands;
+
+    // target of a jump, null for other instructions
+    Instruction target;
+
+    // set when some jump lands on this instruction
+    boolean jumpTarget;
+
+    Instruction(int opcode, int... operands) {
+        this.opcode = opcode;
+        this.operands = operands;
+    }
+
+    int length() {
+        return opcode == END ? 0 : 1 + operands.length;
+    }
+
+    /**
+     * Decodes code into instructions. The last element is always the {@link #END} marker.
+     */
+    static List<Instruction> decode(int[] code, int size) {
+        final List<Instruction> out = new ArrayList<>();
+        final Map<Integer, Instruction> byOffset = new HashMap<>();
+        int offset = 0;
+        while (offset < size) {
+            final int opcode = code[offset];
+            final int count = OpCodes.operandsCount(opcode);
+            final var instruction = new Instruction(opcode, Arrays.copyOfRange(code, offset + 1, offset + 1 + count));
+            byOffset.put(offset, instruction);
+            out.add(instruction);
+            offset += 1 + count;
+        }
+        final var end = new Instruction(END);
+        byOffset.put(size, end);
+        out.add(end);
+
+        for (var instruction : out) {
+            final int jump = OpCodes.jumpOperand(instruction.opcode);
+            if (jump != -1) {
+                final Instruction target = byOffset.get(instruction.operands[jump]);
+                if (target == null) {
+                    throw new IllegalStateException("jump into the middle of an instruction: 0x%X"
+                            .formatted(instruction.operands[jump]));
+                }
+                instruction.target = target;
+                target.jumpTarget = true;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Encodes instructions back, patching jump operands with the new offsets.
+     */
+    static int[] encode(List<Instruction> instructions) {
+        final Map<Instruction, Integer> offsets = new IdentityHashMap<>();
+        int size = 0;
+        for (var instruction : instructions) {
+            offsets.put(instruction, size);
+            size += instruction.length();
+        }
+
+        final int[] code = new int[size];
+        int offset = 0;
+        for (var instruction : instructions) {
+            if (instruction.opcode == END) {
+                continue;
+            }
+            code[offset] = instruction.opcode;
+            System.arraycopy(instruction.operands, 0, code, offset + 1, instruction.operands.length);
+            final int jump = OpCodes.jumpOperand(instruction.opcode);
+            if (jump != -1) {
+                code[offset + 1 + jump] = offsets.get(instruction.target);
+            }
+            offset += instruction.length();
+        }
+        return code;
+    }
+}
@@ -0,0 +1,582 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.TierData;
+import org.starodubov.vm.value.Value;
+import org.starodubov.vm.value.ValueTypes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.starodubov.vm.ClassFileWriter.Code.*;
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * JIT tier. Calls and backward jumps are counted per {@link CodeObj}; once a
+ * function crosses the threshold, it is translated into a hidden class with a
+ * static method taking and returning longs. Stack slots of the frame become
+ * JVM locals and numbers and booleans are plain long values, so HotSpot
+ * compiles the function like ordinary Java code. Calls of the function to itself
+ * become direct static calls, tail calls to itself become loops.
+ * <p>
+ * Only functions whose stack types can be inferred statically are compiled:
+ * numbers, booleans, loops and calls to itself, no globals and no other callees.
+ * The argument types seen on the call that triggered compilation are assumed
+ * for the following calls. A call with other types deoptimizes: the compiled
+ * code is dropped and the call runs in the interpreter, the function can be
+ * compiled again later for the new types. Compiled calls to itself run on the
+ * thread stack, a call that overflows it is deoptimized the same way and
+ * interpreted on the vm stack.
+ * <p>
+ * Generated classes are referenced only from {@link TierData} and are not
+ * strongly reachable from their class loader, so they are unloaded together
+ * with the code object.
+ */
+final class JitCompiler {
+
+    /**
+     * Entry point implemented by every generated class.
+     */
+    interface Code {
+        // arguments are read from prims[base + 1 .. base + arity]
+        long call(long[] prims, int base);
+    }
+
+    record Compiled(Code code, ValueTypes[] params, ValueTypes result) {
+
+        boolean accepts(Value[] stack, int firstArg, int argsCount) {
+            if (argsCount != params.length) {
+                return false;
+            }
+            for (int i = 0; i < argsCount; i++) {
+                if (stack[firstArg + i].type() != params[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // after that many deoptimizations a function stays interpreted
+    static final int MAX_DEOPTS = 3;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String CODE_INTERFACE = Code.class.getName().replace('.', '/');
+
+    private final int threshold;
+
+    private int compiledFunctions;
+
+    private int deoptimizations;
+
+    JitCompiler(int threshold) {
+        this.threshold = threshold;
+    }
+
+    int compiledFunctions() {
+        return compiledFunctions;
+    }
+
+    int deoptimizations() {
+        return deoptimizations;
+    }
+
+    void backEdge(CodeObj co) {
+        co.tierData().hotness++;
+    }
+
+    /**
+     * Counts the call and gives compiled code of the callee when it is hot and
+     * accepts the arguments.
+     *
+     * @return compiled code or null to interpret the call
+     */
+    Compiled compiledFor(CodeObj co, Value[] stack, int firstArg, int argsCount) {
+        final TierData td = co.tierData();
+        if (td.jitCode != null) {
+            final var compiled = (Compiled) td.jitCode;
+            if (compiled.accepts(stack, firstArg, argsCount)) {
+                return compiled;
+            }
+            deoptimize(td);
+            return null;
+        }
+        if (td.jitFailed || ++td.hotness < threshold || argsCount != co.arity()) {
+            return null;
+        }
+
+        final ValueTypes[] params = new ValueTypes[argsCount];
+        for (int i = 0; i < argsCount; i++) {
+            params[i] = stack[firstArg + i].type();
+            if (params[i] != ValueTypes.NUMBER && params[i] != ValueTypes.BOOLEAN) {
+                return null;
+            }
+        }
+
+        final Compiled compiled = compile(co, params);
+        if (compiled == null) {
+            td.jitFailed = true;
+        } else {
+            td.jitCode = compiled;
+            compiledFunctions++;
+        }
+        return compiled;
+    }
+
+    // compiled code ran out of thread stack, the function is interpreted until it gets hot again
+    void overflowed(CodeObj co) {
+        deoptimize(co.tierData());
+    }
+
+    private void deoptimize(TierData td) {
+        td.jitCode = null;
+        td.hotness = 0;
+        if (++td.deopts >= MAX_DEOPTS) {
+            td.jitFailed = true;
+        }
+        deoptimizations++;
+    }
+
+    /**
+     * @return compiled code or null when the function uses something the JIT does not support
+     */
+    static Compiled compile(CodeObj co, ValueTypes[] params) {
+        for (ValueTypes result : new ValueTypes[]{ValueTypes.NUMBER, ValueTypes.BOOLEAN}) {
+            final byte[] bytes;
+            try {
+                bytes = generate(co, params, analyze(co, params, result));
+            } catch (NotCompilable e) {
+                continue;
+            }
+            return define(co, params, result, bytes);
+        }
+        return null;
+    }
+
+    /*
+     * Abstract interpretation of the bytecode over slot types. Gives the types
+     * of the frame slots before every reachable instruction, slot 0 is the callee.
+     * The result type of calls to itself is assumed and checked at RETURN.
+     */
+    private static ValueTypes[][] analyze(CodeObj co, ValueTypes[] params, ValueTypes result) {
+        final int[] code = co.bytecode().code();
+        final int size = co.bytecode().size();
+        final ValueTypes[][] states = new ValueTypes[size + 1][];
+        final Deque<Integer> work = new ArrayDeque<>();
+
+        final ValueTypes[] entry = new ValueTypes[params.length + 1];
+        entry[0] = ValueTypes.FUNCTION;
+        System.arraycopy(params, 0, entry, 1, params.length);
+        states[0] = entry;
+        work.push(0);
+
+        while (!work.isEmpty()) {
+            final int offset = work.pop();
+            if (offset >= size) {
+                throw new NotCompilable();
+            }
+            final var s = new TypeStack(states[offset]);
+            final int op = code[offset];
+            final int next = offset + 1 + OpCodes.operandsCount(op);
+            int jump = -1;
+            boolean fallThrough = true;
+            switch (op) {
+                case OP_CONST -> s.push(constType(co, code[offset + 1]));
+                case OP_ADD, OP_ADD_NUM, OP_ADD_STR, OP_SUB, OP_MUL, OP_DIV -> {
+                    s.pop(ValueTypes.NUMBER);
+                    s.pop(ValueTypes.NUMBER);
+                    s.push(ValueTypes.NUMBER);
+                }
+                case OP_COMPARE, OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM -> {
+                    compare(s, code[offset + 1]);
+                    s.push(ValueTypes.BOOLEAN);
+                }
+                case OP_CMP_JMP_IF_FALSE -> {
+                    compare(s, code[offset + 1]);
+                    jump = code[offset + 2];
+                }
+                case OP_JMP_IF_FALSE -> {
+                    s.pop(ValueTypes.BOOLEAN);
+                    jump = code[offset + 1];
+                }
+                case OP_JMP -> {
+                    jump = code[offset + 1];
+                    fallThrough = false;
+                }
+                case OP_GET_LOCAL -> s.push(s.local(code[offset + 1]));
+                case OP_SET_LOCAL -> {
+                    if (s.local(code[offset + 1]) != s.peek()) {
+                        throw new NotCompilable();
+                    }
+                }
+                case OP_POP -> s.pop();
+                case OP_SCOPE_EXIT -> s.scopeExit(code[offset + 1]);
+                case OP_CALL -> {
+                    final int argsCount = code[offset + 1];
+                    if (argsCount != params.length) {
+                        throw new NotCompilable();
+                    }
+                    for (int i = argsCount - 1; i >= 0; i--) {
+                        s.pop(params[i]);
+                    }
+                    s.pop(ValueTypes.FUNCTION);
+                    s.push(result);
+                }
+                case OP_TAIL_CALL -> {
+                    final int argsCount = code[offset + 1];
+                    if (argsCount != params.length) {
+                        throw new NotCompilable();
+                    }
+                    for (int i = argsCount - 1; i >= 0; i--) {
+                        s.pop(params[i]);
+                    }
+                    s.pop(ValueTypes.FUNCTION);
+                    // becomes a jump to the start with new arguments
+                    flow(states, work, 0, entry);
+                    fallThrough = false;
+                }
+                case OP_RETURN -> {
+                    if (s.depth() != 1 || s.peek() != result) {
+                        throw new NotCompilable();
+                    }
+                    fallThrough = false;
+                }
+                case OP_INC_LOCAL -> {
+                    if (s.local(code[offset + 1]) != ValueTypes.NUMBER
+                            || constType(co, code[offset + 2]) != ValueTypes.NUMBER) {
+                        throw new NotCompilable();
+                    }
+                    s.push(ValueTypes.NUMBER);
+                }
+                case OP_ADD_LOCALS -> {
+                    if (s.local(code[offset + 1]) != ValueTypes.NUMBER
+                            || s.local(code[offset + 2]) != ValueTypes.NUMBER) {
+                        throw new NotCompilable();
+                    }
+                    s.push(ValueTypes.NUMBER);
+                }
+                case OP_ADD_CONST, OP_SUB_CONST -> {
+                    if (constType(co, code[offset + 1]) != ValueTypes.NUMBER) {
+                        throw new NotCompilable();
+                    }
+                    s.pop(ValueTypes.NUMBER);
+                    s.push(ValueTypes.NUMBER);
+                }
+                // globals, HALT and the rest
+                default -> throw new NotCompilable();
+            }
+
+            final ValueTypes[] out = s.toArray();
+            if (jump != -1) {
+                flow(states, work, jump, out);
+            }
+            if (fallThrough) {
+                flow(states, work, next, out);
+            }
+        }
+        return states;
+    }
+
+    private static void flow(ValueTypes[][] states, Deque<Integer> work, int target, ValueTypes[] state) {
+        if (states[target] == null) {
+            states[target] = state;
+            work.push(target);
+        } else if (!Arrays.equals(states[target], state)) {
+            // the same slot holds different types on different paths
+            throw new NotCompilable();
+        }
+    }
+
+    private static void compare(TypeStack s, int compareCode) {
+        final ValueTypes t = s.pop();
+        if (s.pop() != t) {
+            throw new NotCompilable();
+        }
+        final boolean supported = switch (t) {
+            case NUMBER -> true;
+            case BOOLEAN -> compareCode == Compiler.CMP_EQ_CODE || compareCode == Compiler.CMP_NOT_EQ_CODE;
+            default -> false;
+        };
+        if (!supported) {
+            throw new NotCompilable();
+        }
+    }
+
+    private static ValueTypes constType(CodeObj co, int idx) {
+        final ValueTypes t = co.constants().get(idx).type();
+        // VOID is the value of loops, it is only popped or kept in a slot
+        if (t != ValueTypes.NUMBER && t != ValueTypes.BOOLEAN && t != ValueTypes.VOID) {
+            throw new NotCompilable();
+        }
+        return t;
+    }
+
+    /*
+     * Frame slot d lives in the JVM local base + 2 * d, where base follows the
+     * parameters of the static method. The operand stack of the JVM is only
+     * used within one instruction.
+     */
+    private static byte[] generate(CodeObj co, ValueTypes[] params, ValueTypes[][] states) {
+        final int[] code = co.bytecode().code();
+        final int size = co.bytecode().size();
+        final String className = className(co);
+        final String descriptor = descriptor(params.length);
+        final var cw = new ClassFileWriter(className, "java/lang/Object", CODE_INTERFACE);
+        final int self = cw.methodRef(className, "run", descriptor);
+        final int base = 2 * params.length;
+
+        final var c = new ClassFileWriter.Code();
+        // slot 0 holds the callee, it is only copied around
+        c.op(LCONST_0).local(LSTORE, base);
+        for (int i = 1; i <= params.length; i++) {
+            c.local(LLOAD, 2 * (i - 1)).local(LSTORE, base + 2 * i);
+        }
+
+        int maxDepth = 0;
+        int offset = 0;
+        while (offset < size) {
+            final int op = code[offset];
+            final int next = offset + 1 + OpCodes.operandsCount(op);
+            if (states[offset] == null) {
+                // unreachable
+                offset = next;
+                continue;
+            }
+            final int d = states[offset].length;
+            maxDepth = Math.max(maxDepth, d + 1);
+            c.bind(offset);
+            switch (op) {
+                case OP_CONST -> {
+                    pushConst(cw, c, co.constants().get(code[offset + 1]));
+                    c.local(LSTORE, base + 2 * d);
+                }
+                case OP_ADD, OP_ADD_NUM, OP_ADD_STR -> binary(c, base, d, LADD);
+                case OP_SUB -> binary(c, base, d, LSUB);
+                case OP_MUL -> binary(c, base, d, LMUL);
+                case OP_DIV -> binary(c, base, d, LDIV);
+                case OP_COMPARE, OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM -> {
+                    // result label is past the end of the bytecode, unique per instruction
+                    final int falseLabel = size + 1 + 2 * offset, endLabel = falseLabel + 1;
+                    compareOperands(c, base, d);
+                    c.jump(ifFalse(code[offset + 1]), falseLabel)
+                            .op(LCONST_1)
+                            .jump(GOTO, endLabel);
+                    c.bind(falseLabel);
+                    c.op(LCONST_0);
+                    c.bind(endLabel);
+                    c.local(LSTORE, base + 2 * (d - 2));
+                }
+                case OP_CMP_JMP_IF_FALSE -> {
+                    compareOperands(c, base, d);
+                    c.jump(ifFalse(code[offset + 1]), code[offset + 2]);
+                }
+                case OP_JMP_IF_FALSE -> c.local(LLOAD, base + 2 * (d - 1))
+                        .op(LCONST_0)
+                        .op(LCMP)
+                        .jump(IFEQ, code[offset + 1]);
+                case OP_JMP -> c.jump(GOTO, code[offset + 1]);
+                case OP_GET_LOCAL -> c.local(LLOAD, base + 2 * code[offset + 1]).local(LSTORE, base + 2 * d);
+                case OP_SET_LOCAL -> c.local(LLOAD, base + 2 * (d - 1)).local(LSTORE, base + 2 * code[offset + 1]);
+                case OP_POP -> {
+                }
+                case OP_SCOPE_EXIT -> c.local(LLOAD, base + 2 * (d - 1))
+                        .local(LSTORE, base + 2 * (d - 1 - code[offset + 1]));
+                case OP_CALL -> {
+                    final int argsCount = code[offset + 1];
+                    for (int i = argsCount; i > 0; i--) {
+                        c.local(LLOAD, base + 2 * (d - i));
+                    }
+                    c.opShort(INVOKESTATIC, self).local(LSTORE, base + 2 * (d - argsCount - 1));
+                }
+                case OP_TAIL_CALL -> {
+                    final int argsCount = code[offset + 1];
+                    for (int i = argsCount; i > 0; i--) {
+                        c.local(LLOAD, base + 2 * (d - i));
+                    }
+                    for (int i = argsCount; i > 0; i--) {
+                        c.local(LSTORE, base + 2 * i);
+                    }
+                    c.jump(GOTO, 0);
+                }
+                case OP_RETURN -> c.local(LLOAD, base).op(LRETURN);
+                case OP_INC_LOCAL -> {
+                    final int local = base + 2 * code[offset + 1];
+                    c.local(LLOAD, local);
+                    pushConst(cw, c, co.constants().get(code[offset + 2]));
+                    c.op(LADD).op(DUP2).local(LSTORE, local).local(LSTORE, base + 2 * d);
+                }
+                case OP_ADD_LOCALS -> c.local(LLOAD, base + 2 * code[offset + 1])
+                        .local(LLOAD, base + 2 * code[offset + 2])
+                        .op(LADD)
+                        .local(LSTORE, base + 2 * d);
+                case OP_ADD_CONST, OP_SUB_CONST -> {
+                    c.local(LLOAD, base + 2 * (d - 1));
+                    pushConst(cw, c, co.constants().get(code[offset + 1]));
+                    c.op(op == OP_ADD_CONST ? LADD : LSUB).local(LSTORE, base + 2 * (d - 1));
+                }
+                default -> throw new IllegalStateException("unknown instruction 0x%X".formatted(op));
+            }
+            offset = next;
+        }
+
+        final byte[] body = c.toByteArray();
+        if (body.length > Short.MAX_VALUE) {
+            // branch offsets are 16 bit
+            throw new NotCompilable();
+        }
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "run", descriptor,
+                Math.max(6, 2 * params.length), base + 2 * (maxDepth + 1), body);
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1, constructor(cw));
+        cw.addMethod(ClassFileWriter.ACC_PUBLIC, "call", "([JI)J", 2 * params.length + 3, 3,
+                entry(self, params.length));
+        return cw.toByteArray();
+    }
+
+    // lcmp of the two top slots, second against top
+    private static void compareOperands(ClassFileWriter.Code c, int base, int d) {
+        c.local(LLOAD, base + 2 * (d - 2)).local(LLOAD, base + 2 * (d - 1)).op(LCMP);
+    }
+
+    private static void binary(ClassFileWriter.Code c, int base, int d, int opcode) {
+        c.local(LLOAD, base + 2 * (d - 2))
+                .local(LLOAD, base + 2 * (d - 1))
+                .op(opcode)
+                .local(LSTORE, base + 2 * (d - 2));
+    }
+
+    private static void pushConst(ClassFileWriter cw, ClassFileWriter.Code c, Value v) {
+        final long n = switch (v.type()) {
+            case NUMBER -> Value.asNumber(v);
+            case BOOLEAN -> Value.asBoolean(v) ? 1 : 0;
+            default -> 0;
+        };
+        if (n == 0) {
+            c.op(LCONST_0);
+        } else if (n == 1) {
+            c.op(LCONST_1);
+        } else {
+            c.opShort(LDC2_W, cw.longConst(n));
+        }
+    }
+
+    // branch taken when `second <op> top` is false, see Vm.compareOp
+    private static int ifFalse(int compareCode) {
+        return switch (compareCode) {
+            case Compiler.CMP_LESS_CODE -> IFGE;
+            case Compiler.CMP_GREAT_CODE -> IFLE;
+            case Compiler.CMP_EQ_CODE -> IFNE;
+            case Compiler.CMP_NOT_EQ_CODE -> IFEQ;
+            case Compiler.CMP_GREAT_OR_EQ_CODE -> IFLT;
+            case Compiler.CMP_EQ_OR_LESS_CODE -> IFGT;
+            default -> throw new IllegalStateException("Unexpected compare value for nums: " + compareCode);
+        };
+    }
+
+    private static byte[] constructor(ClassFileWriter cw) {
+        return new ClassFileWriter.Code()
+                .local(ALOAD, 0)
+                .opShort(INVOKESPECIAL, cw.methodRef("java/lang/Object", "<init>", "()V"))
+                .op(RETURN)
+                .toByteArray();
+    }
+
+    // Code.call: unpacks the arguments from prims and calls run
+    private static byte[] entry(int self, int arity) {
+        final var c = new ClassFileWriter.Code();
+        for (int i = 1; i <= arity; i++) {
+            c.local(ALOAD, 1).local(ILOAD, 2).pushInt(i).op(IADD).op(LALOAD);
+        }
+        return c.opShort(INVOKESTATIC, self).op(LRETURN).toByteArray();
+    }
+
+    private static Compiled define(CodeObj co, ValueTypes[] params, ValueTypes result, byte[] bytes) {
+        try {
+            final Class<?> cls = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+            final var code = (Code) LOOKUP.findConstructor(cls, MethodType.methodType(void.class)).invoke();
+            return new Compiled(code, params.clone(), result);
+        } catch (Throwable e) {
+            throw new IllegalStateException("cannot define compiled code of " + co.name(), e);
+        }
+    }
+
+    private static String className(CodeObj co) {
+        return "org/starodubov/vm/Jit$" + co.name().replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    private static String descriptor(int arity) {
+        return "(" + "J".repeat(arity) + ")J";
+    }
+
+    // types of the frame slots, slot 0 is at the bottom
+    private static final class TypeStack {
+        private ValueTypes[] slots;
+        private int depth;
+
+        TypeStack(ValueTypes[] slots) {
+            this.slots = Arrays.copyOf(slots, slots.length + 2);
+            this.depth = slots.length;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        void push(ValueTypes t) {
+            if (depth == slots.length) {
+                slots = Arrays.copyOf(slots, depth * 2);
+            }
+            slots[depth++] = t;
+        }
+
+        ValueTypes pop() {
+            if (depth == 0) {
+                throw new NotCompilable();
+            }
+            return slots[--depth];
+        }
+
+        void pop(ValueTypes expected) {
+            if (pop() != expected) {
+                throw new NotCompilable();
+            }
+        }
+
+        ValueTypes peek() {
+            if (depth == 0) {
+                throw new NotCompilable();
+            }
+            return slots[depth - 1];
+        }
+
+        ValueTypes local(int idx) {
+            if (idx < 0 || idx >= depth) {
+                throw new NotCompilable();
+            }
+            return slots[idx];
+        }
+
+        void scopeExit(int count) {
+            if (count >= depth) {
+                throw new NotCompilable();
+            }
+            slots[depth - 1 - count] = slots[depth - 1];
+            depth -= count;
+        }
+
+        ValueTypes[] toArray() {
+            return Arrays.copyOf(slots, depth);
+        }
+    }
+
+    private static final class NotCompilable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NotCompilable() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -2,7 +2,9 @@ package org.starodubov.vm;
 
 public record LocalVar(
         String name,
-        int scopeLevel
+        int scopeLevel,
+        // slot of the local with the same name this one hides, -1 if none
+        int shadowed
 ) {
 
 }
@@ -0,0 +1,165 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.NativeFn;
+import org.starodubov.vm.value.Value;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns static methods into natives. Parameters may be {@code Value},
+ * {@code long}, {@code boolean} or {@code String} and are converted from the
+ * arguments, the result may be one of those or {@code void}, which gives VOID.
+ * The converted handle is wrapped in the {@link NativeFn} entry point for its
+ * arity.
+ */
+final class NativeMethods {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private NativeMethods() {
+    }
+
+    /**
+     * @return static methods of the class accessible to the lookup, in name
+     * order, so natives get the same globals on every run
+     */
+    static List<Method> of(MethodHandles.Lookup lookup, Class<?> owner) {
+        final Set<String> names = new HashSet<>();
+        final List<Method> methods = Arrays.stream(owner.getDeclaredMethods())
+                .filter(m -> Modifier.isStatic(m.getModifiers()) && !m.isSynthetic())
+                .filter(m -> accessible(lookup, m))
+                .sorted(Comparator.comparing(Method::getName))
+                .toList();
+        for (var m : methods) {
+            if (!names.add(m.getName())) {
+                throw new IllegalArgumentException("overloaded native '%s' in %s".formatted(m.getName(), owner.getName()));
+            }
+        }
+        return methods;
+    }
+
+    static NativeFn fn(MethodHandles.Lookup lookup, Method method) {
+        final MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("native '%s' is not accessible".formatted(method.getName()), e);
+        }
+        return fn(method.getName(), handle);
+    }
+
+    static NativeFn fn(String name, MethodHandle handle) {
+        MethodHandle h = handle;
+        final MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            h = MethodHandles.filterArguments(h, i, fromValue(name, type.parameterType(i)));
+        }
+        h = type.returnType() == void.class
+                ? MethodHandles.collectArguments(MethodHandles.constant(Value.class, Value.VOID), 0, h)
+                : MethodHandles.filterReturnValue(h, toValue(name, type.returnType()));
+        final int arity = type.parameterCount();
+        final MethodHandle target = h.asType(MethodType.methodType(Value.class, Collections.nCopies(arity, Value.class)));
+
+        return switch (arity) {
+            case 0 -> (NativeFn.Fn0) () -> {
+                try {
+                    return (Value) target.invokeExact();
+                } catch (Throwable e) {
+                    throw rethrow(e);
+                }
+            };
+            case 1 -> (NativeFn.Fn1) a -> {
+                try {
+                    return (Value) target.invokeExact(a);
+                } catch (Throwable e) {
+                    throw rethrow(e);
+                }
+            };
+            case 2 -> (NativeFn.Fn2) (a, b) -> {
+                try {
+                    return (Value) target.invokeExact(a, b);
+                } catch (Throwable e) {
+                    throw rethrow(e);
+                }
+            };
+            default -> {
+                final MethodHandle spread = target.asSpreader(Value[].class, arity);
+                yield (NativeFn.FnN) args -> {
+                    try {
+                        return (Value) spread.invokeExact(args);
+                    } catch (Throwable e) {
+                        throw rethrow(e);
+                    }
+                };
+            }
+        };
+    }
+
+    private static boolean accessible(MethodHandles.Lookup lookup, Method m) {
+        try {
+            lookup.unreflect(m);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    // (Value) -> parameter type
+    private static MethodHandle fromValue(String name, Class<?> type) {
+        final String converter;
+        if (type == Value.class) {
+            return MethodHandles.identity(Value.class);
+        } else if (type == long.class) {
+            converter = "asNumber";
+        } else if (type == boolean.class) {
+            converter = "asBoolean";
+        } else if (type == String.class) {
+            converter = "asString";
+        } else {
+            throw new IllegalArgumentException("native '%s' takes unsupported %s".formatted(name, type.getName()));
+        }
+        return find(converter, MethodType.methodType(type, Value.class));
+    }
+
+    // return type -> Value
+    private static MethodHandle toValue(String name, Class<?> type) {
+        if (type == Value.class) {
+            return MethodHandles.identity(Value.class);
+        } else if (type == long.class) {
+            return find("number", MethodType.methodType(Value.class, Number.class))
+                    .asType(MethodType.methodType(Value.class, long.class));
+        } else if (type == boolean.class) {
+            return find("bool", MethodType.methodType(Value.class, boolean.class));
+        } else if (type == String.class) {
+            return find("string", MethodType.methodType(Value.class, String.class));
+        }
+        throw new IllegalArgumentException("native '%s' returns unsupported %s".formatted(name, type.getName()));
+    }
+
+    private static MethodHandle find(String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(Value.class, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException r) {
+            return r;
+        } else if (e instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(e);
+    }
+}
@@ -21,8 +21,50 @@ public class OpCodes {
 
     public static final int OP_SCOPE_EXIT = 0x14;
     public static final int OP_CALL = 0x15;
+    // call in tail position, replaces the frame of the caller
+    public static final int OP_TAIL_CALL = 0x16;
     public static final int OP_RETURN = 0xA;
 
+    // quickened instructions, rewritten in place by the interpreter after it observes operand types
+    public static final int OP_ADD_NUM = 0x20;
+    public static final int OP_ADD_STR = 0x21;
+    public static final int OP_LT_NUM = 0x22;
+    public static final int OP_GT_NUM = 0x23;
+    public static final int OP_EQ_NUM = 0x24;
+    public static final int OP_LE_NUM = 0x25;
+    public static final int OP_GE_NUM = 0x26;
+    public static final int OP_NE_NUM = 0x27;
+
+    // superinstructions, selected by the compiler for common sequences
+    public static final int OP_CMP_JMP_IF_FALSE = 0x30;
+    public static final int OP_INC_LOCAL = 0x31;
+    public static final int OP_INC_GLOBAL = 0x32;
+    public static final int OP_ADD_LOCALS = 0x33;
+    public static final int OP_ADD_CONST = 0x34;
+    public static final int OP_SUB_CONST = 0x35;
+
+    public static int operandsCount(int opcode) {
+        return switch (opcode) {
+            case OP_CONST, OP_COMPARE, OP_JMP_IF_FALSE, OP_JMP, OP_GET_GLOBAL, OP_SET_GLOBAL,
+                 OP_GET_LOCAL, OP_SET_LOCAL, OP_SCOPE_EXIT, OP_CALL, OP_TAIL_CALL,
+                 OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM,
+                 OP_ADD_CONST, OP_SUB_CONST -> 1;
+            case OP_CMP_JMP_IF_FALSE, OP_INC_LOCAL, OP_INC_GLOBAL, OP_ADD_LOCALS -> 2;
+            default -> 0;
+        };
+    }
+
+    /**
+     * @return index of the operand holding a jump address or -1
+     */
+    public static int jumpOperand(int opcode) {
+        return switch (opcode) {
+            case OP_JMP_IF_FALSE, OP_JMP -> 0;
+            case OP_CMP_JMP_IF_FALSE -> 1;
+            default -> -1;
+        };
+    }
+
     public static String opcodeToString(int opcode) {
         return switch (opcode) {
             case 0x00 -> "HALT";
@@ -41,7 +83,22 @@ public class OpCodes {
             case 0x13 -> "SET_LOCAL";
             case 0x14 -> "SCOPE_EXIT";
             case 0x15 -> "CALL";
+            case 0x16 -> "TAIL_CALL";
             case 0xA -> "RETURN";
+            case 0x20 -> "ADD_NUM";
+            case 0x21 -> "ADD_STR";
+            case 0x22 -> "LT_NUM";
+            case 0x23 -> "GT_NUM";
+            case 0x24 -> "EQ_NUM";
+            case 0x25 -> "LE_NUM";
+            case 0x26 -> "GE_NUM";
+            case 0x27 -> "NE_NUM";
+            case 0x30 -> "CMP_JMP_IF_FALSE";
+            case 0x31 -> "INC_LOCAL";
+            case 0x32 -> "INC_GLOBAL";
+            case 0x33 -> "ADD_LOCALS";
+            case 0x34 -> "ADD_CONST";
+            case 0x35 -> "SUB_CONST";
             default -> "UNKNOWN";
         };
     }
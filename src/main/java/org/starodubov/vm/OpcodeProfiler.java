@@ -0,0 +1,159 @@
+package org.starodubov.vm;
+
+import org.apache.commons.lang3.StringUtils;
+import org.starodubov.vm.value.CodeObj;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts executed opcodes and the most frequent 2- and 3-opcode sequences,
+ * globally and per {@link CodeObj}. Sequences follow the dynamic execution
+ * order, so they cross jumps, calls and returns. A sequence is attributed to
+ * the code object of its last opcode.
+ * <p>
+ * Installed with {@link Vm#setProfiler}, the vm then runs a separate
+ * instrumented loop, so the regular loop does not pay for profiling.
+ */
+public class OpcodeProfiler {
+
+    private static final int NO_OPCODE = -1;
+
+    private static final int OPCODES_LIMIT = 256;
+
+    public void record(CodeObj co, int opcode) {
+        if (co != lastCo) {
+            lastCo = co;
+            lastCounts = byCodeObj.computeIfAbsent(co, c -> new Counts());
+        }
+
+        total.add(prev2, prev1, opcode);
+        lastCounts.add(prev2, prev1, opcode);
+        prev2 = prev1;
+        prev1 = opcode;
+    }
+
+    public long count(int opcode) {
+        return total.opcodes[opcode];
+    }
+
+    public long count(int first, int second) {
+        return total.bigrams.getOrDefault(bigram(first, second), ZERO)[0];
+    }
+
+    public long count(int first, int second, int third) {
+        return total.trigrams.getOrDefault(trigram(first, second, third), ZERO)[0];
+    }
+
+    public long instructions() {
+        return total.instructions;
+    }
+
+    public void reset() {
+        total = new Counts();
+        byCodeObj.clear();
+        lastCo = null;
+        lastCounts = null;
+        prev1 = prev2 = NO_OPCODE;
+    }
+
+    /**
+     * Writes counts sorted by frequency: the global profile first, then one per code object.
+     *
+     * @param limit max rows in each table
+     */
+    public void writeReport(PrintStream out, int limit) {
+        writeCounts(out, "all code", total, limit);
+        final List<Map.Entry<CodeObj, Counts>> codeObjs = new ArrayList<>(byCodeObj.entrySet());
+        codeObjs.sort(Comparator.comparingLong((Map.Entry<CodeObj, Counts> e) -> e.getValue().instructions).reversed());
+        for (var e : codeObjs) {
+            writeCounts(out, e.getKey().name(), e.getValue(), limit);
+        }
+    }
+
+    private void writeCounts(PrintStream out, String title, Counts counts, int limit) {
+        out.printf("---------------Opcode profile: %s (%d instructions) ----------------------%n",
+                title, counts.instructions);
+
+        final Map<Long, long[]> single = new HashMap<>();
+        for (int op = 0; op < OPCODES_LIMIT; op++) {
+            if (counts.opcodes[op] != 0) {
+                single.put((long) op, new long[]{counts.opcodes[op]});
+            }
+        }
+        writeTable(out, "opcodes", single, counts.instructions, limit, 1);
+        writeTable(out, "pairs", counts.bigrams, counts.instructions, limit, 2);
+        writeTable(out, "triples", counts.trigrams, counts.instructions, limit, 3);
+        out.println();
+    }
+
+    private void writeTable(PrintStream out, String title, Map<Long, long[]> table, long instructions, int limit, int n) {
+        out.println(title + ":");
+        final List<Map.Entry<Long, long[]>> rows = new ArrayList<>(table.entrySet());
+        rows.sort(Comparator.comparingLong((Map.Entry<Long, long[]> e) -> e.getValue()[0]).reversed());
+        for (int i = 0; i < Math.min(limit, rows.size()); i++) {
+            final var row = rows.get(i);
+            final long count = row.getValue()[0];
+            out.println("    "
+                    + StringUtils.rightPad(sequenceToString(row.getKey(), n), 50, ' ')
+                    + StringUtils.leftPad(Long.toString(count), 14, ' ')
+                    + StringUtils.leftPad("%.2f%%".formatted(100.0 * count / Math.max(1, instructions)), 10, ' '));
+        }
+    }
+
+    private static String sequenceToString(long key, int n) {
+        final var sb = new StringBuilder();
+        for (int i = n - 1; i >= 0; i--) {
+            sb.append(OpCodes.opcodeToString((int) (key >>> (16 * i)) & 0xFFFF));
+            if (i != 0) {
+                sb.append(" -> ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long bigram(int first, int second) {
+        return ((long) first << 16) | second;
+    }
+
+    private static long trigram(int first, int second, int third) {
+        return ((long) first << 32) | ((long) second << 16) | third;
+    }
+
+    private static final long[] ZERO = {0};
+
+    private static final class Counts {
+        final long[] opcodes = new long[OPCODES_LIMIT];
+        final Map<Long, long[]> bigrams = new HashMap<>();
+        final Map<Long, long[]> trigrams = new HashMap<>();
+        long instructions;
+
+        void add(int prev2, int prev1, int opcode) {
+            instructions++;
+            opcodes[opcode]++;
+            if (prev1 != NO_OPCODE) {
+                bigrams.computeIfAbsent(bigram(prev1, opcode), k -> new long[1])[0]++;
+                if (prev2 != NO_OPCODE) {
+                    trigrams.computeIfAbsent(trigram(prev2, prev1, opcode), k -> new long[1])[0]++;
+                }
+            }
+        }
+    }
+
+    private Counts total = new Counts();
+
+    private final Map<CodeObj, Counts> byCodeObj = new IdentityHashMap<>();
+
+    private CodeObj lastCo;
+
+    private Counts lastCounts;
+
+    private int prev1 = NO_OPCODE;
+
+    private int prev2 = NO_OPCODE;
+}
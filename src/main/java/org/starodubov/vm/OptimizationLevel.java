@@ -0,0 +1,10 @@
+package org.starodubov.vm;
+
+public enum OptimizationLevel {
+    // code as generated
+    O0,
+    // constant folding, push/pop cancellation and jump threading
+    O1,
+    // O1, plus pruning of branches on constant tests and removal of unreachable code
+    O2
+}
@@ -0,0 +1,237 @@
+package org.starodubov.vm;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Where the print natives of a vm write. Text is collected in a buffer and
+ * written to the stream when the buffer is full or on {@link #flush}, so
+ * printing a line takes no lock and no system call. The vm flushes its sink
+ * when a run ends.
+ * <p>
+ * An asynchronous sink hands full buffers to a writer thread and goes on with
+ * an empty one, the script only waits when the writer is behind by all the
+ * buffers. {@link #flush} waits until everything is written, {@link #close}
+ * also stops the thread.
+ * <p>
+ * A closed sink has nothing left to write: closing or flushing it again does
+ * nothing and printing to it throws {@link IllegalStateException}.
+ */
+public final class OutputSink implements Flushable, AutoCloseable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    // buffers an asynchronous sink cycles through
+    private static final int ASYNC_BUFFERS = 4;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final OutputStream out;
+
+    private final int bufferSize;
+
+    private StringBuilder buffer;
+
+    // null for a synchronous sink
+    private final Writer writer;
+
+    private boolean closed;
+
+    private OutputSink(OutputStream out, int bufferSize, boolean async) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+        }
+        this.out = out;
+        this.bufferSize = bufferSize;
+        this.buffer = new StringBuilder(bufferSize);
+        this.writer = async ? new Writer() : null;
+    }
+
+    public OutputSink(OutputStream out, int bufferSize) {
+        this(out, bufferSize, false);
+    }
+
+    public OutputSink(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    // sink writing on a background thread
+    public static OutputSink async(OutputStream out, int bufferSize) {
+        return new OutputSink(out, bufferSize, true);
+    }
+
+    public static OutputSink stdout() {
+        return new OutputSink(System.out);
+    }
+
+    public void print(Object x) {
+        ensureOpen();
+        buffer.append(x);
+        if (buffer.length() >= bufferSize) {
+            drain(false);
+        }
+    }
+
+    public void println(Object x) {
+        ensureOpen();
+        buffer.append(x).append(LINE_SEPARATOR);
+        if (buffer.length() >= bufferSize) {
+            drain(false);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (!closed) {
+            drain(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            // the writer thread is gone after that, a drain would wait for it forever
+            closed = true;
+            if (writer != null) {
+                writer.stop();
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("output sink is closed");
+        }
+    }
+
+    // writes the buffer out, or passes it to the writer thread and waits for it when `wait` is set
+    private void drain(boolean wait) {
+        if (writer == null) {
+            write(buffer);
+            buffer.setLength(0);
+            return;
+        }
+        writer.rethrow();
+        if (buffer.isEmpty() && !wait) {
+            return;
+        }
+        final var done = wait ? new CountDownLatch(1) : null;
+        buffer = writer.submit(buffer, done);
+        if (done != null) {
+            awaitUninterruptibly(done);
+            writer.rethrow();
+        }
+    }
+
+    private void write(CharSequence text) {
+        try {
+            if (!text.isEmpty()) {
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Chunk(StringBuilder text, CountDownLatch done) {
+    }
+
+    private final class Writer implements Runnable {
+
+        private static final Chunk STOP = new Chunk(null, null);
+
+        private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(ASYNC_BUFFERS + 1);
+
+        private final BlockingQueue<StringBuilder> free = new ArrayBlockingQueue<>(ASYNC_BUFFERS);
+
+        private final Thread thread;
+
+        // first write failure, reported to the vm thread on its next drain
+        private volatile RuntimeException failure;
+
+        Writer() {
+            for (int i = 1; i < ASYNC_BUFFERS; i++) {
+                free.add(new StringBuilder(bufferSize));
+            }
+            thread = new Thread(this, "vm-output");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // hands the text over and returns an empty buffer to go on with
+        StringBuilder submit(StringBuilder text, CountDownLatch done) {
+            try {
+                full.put(new Chunk(text, done));
+                return free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while writing output", e);
+            }
+        }
+
+        void stop() {
+            try {
+                full.put(STOP);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void rethrow() {
+            final RuntimeException e = failure;
+            if (e != null) {
+                failure = null;
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while ((chunk = full.take()) != STOP) {
+                    try {
+                        write(chunk.text());
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                    chunk.text().setLength(0);
+                    free.put(chunk.text());
+                    if (chunk.done() != null) {
+                        chunk.done().countDown();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
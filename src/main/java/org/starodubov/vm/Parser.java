@@ -1,33 +1,21 @@
 /**
- * LR parser for Java generated by the Syntax tool.
+ * LR parser for the language. The LALR1 tables were first generated by the
+ * Syntax tool (syntax-cli) from src/main/resources/grammar_c.bnf and are now
+ * maintained by hand in this file, together with the tokenizer: do not
+ * regenerate it, the output would replace the int tables, the flat Ast
+ * builder and the allocation free tokenizer.
  * <p>
- * https://www.npmjs.com/package/syntax-cli
- * <p>
- * npm install -g syntax-cli
- * <p>
- * syntax-cli --help
- * <p>
- * To regenerate run:
- * <p>
- * syntax-cli \
- * --grammar ~/path-to-grammar-file \
- * --mode LALR1 \
- * --output ~/ParserClassName.java
+ * To change the grammar, update grammar_c.bnf, run syntax-cli on it in LALR1
+ * mode into a scratch file and carry its productions, actions and gotos over
+ * to mProductions, mActions and mGotos below, encoding actions with s() and
+ * r(). Reductions are the switch in Parser.reduce, token rules are in
+ * Tokenizer.nextToken.
  */
 
 package org.starodubov.vm;
 
-import java.lang.reflect.Method;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
  * Expression type.
@@ -40,34 +28,6 @@ enum ExpType {
     LIST
 }
 
-class Exp {
-    public ExpType type;
-    public int number;
-    public String string;
-    public List<Exp> list;
-
-    // Numbers:
-    public Exp(int number) {
-        this.number = number;
-        type = ExpType.NUMBER;
-    }
-
-    public Exp(String strVal) {
-        if (strVal.charAt(0) == '"') {
-            type = ExpType.STRING;
-            string = strVal.substring(1, strVal.length() - 1);
-        } else {
-            type = ExpType.SYMBOL;
-            string = strVal;
-        }
-    }
-
-    public Exp(List<Exp> list) {
-        type = ExpType.LIST;
-        this.list = list;
-    }
-}
-
 /*
 
 The `ParserEvents` class allows defining hooks for certain parse events,
@@ -203,21 +163,22 @@ class Token {
 }
 
 /**
- * Regexp-based tokenizer. Applies lexical rules in order, until gets
- * a match; otherwise, throws the "Unexpected token" exception.
+ * Hand-written tokenizer. Scans the source string in place, one character
+ * at a time, and never copies the rest of the input, so lexing is linear in
+ * the size of the source. Recognizes the same tokens as the grammar rules:
  *
- * Tokenizer should implement at least the following API:
+ *   \(             '('
+ *   \)             ')'
+ *   \s+            skipped
+ *   "[^"]*"        STRING
+ *   \d+            NUMBER
+ *   [\w\-+*=!<>/]+ SYMBOL
+ *
+ * Tokenizer implements the API the parser needs:
  *
  * - getNextToken(): Token
  * - hasMoreTokens(): boolean
  * - isEOF(): boolean
- *
- * For state-based tokenizer, also:
- *
- * - getCurrentState(): obj
- * - pushState(String stateName): void
- * - popState(): void
- * - begin(String stateName): void - alias for pushState
  */
 class Tokenizer {
 
@@ -242,94 +203,20 @@ class Tokenizer {
     public static String EOF = "$";
 
     /**
-     * Maps a String name of a token type to its encoded obj (the first
-     * token obj starts after all numbers for non-terminal).
-     *
-     * Example:
-     *
-     *   put("+", 1);
-     *   put("*", 2);
-     *   put("NUMBER", 3);
-     *   ...
+     * Encoded token types, the first token type starts after all numbers
+     * for non-terminals.
      */
-    private static final Map<String, Integer> mTokensMap = new HashMap<String, Integer>() {{
-        put("NUMBER", 4);
-        put("STRING", 5);
-        put("SYMBOL", 6);
-        put("'('", 7);
-        put("')'", 8);
-        put("$", 9);
-    }};
+    static final int NUMBER = 4;
+    static final int STRING = 5;
+    static final int SYMBOL = 6;
+    static final int LPAREN = 7;
+    static final int RPAREN = 8;
+    static final int EOF_TYPE = 9;
 
     /**
      * EOF Token.
      */
-    public static Token EOF_TOKEN = new Token(
-            mTokensMap.get(Tokenizer.EOF),
-            Tokenizer.EOF
-    );
-
-    /**
-     * Lex patterns, and their handler names.
-     *
-     * Example:
-     *
-     *   Pattern.compile("^\\s+"),
-     *   Pattern.compile("^\\d+"),
-     *   ...
-     */
-    private static final Pattern[] mLexPatterns = {
-            Pattern.compile("^\\("),
-            Pattern.compile("^\\)"),
-            Pattern.compile("^\\s+"),
-            Pattern.compile("^\"[^\\\"]*\""),
-            Pattern.compile("^\\d+"),
-            Pattern.compile("^[\\w\\-+*=!<>/]+")
-    };
-
-    /**
-     * Cache for the lex rule methods.
-     *
-     * Example:
-     *
-     *   mLexHandlerMethods[0] = Tokenizer.class.getDeclaredMethod("_lexRule0");
-     *   ...
-     */
-    private static final Method[] mLexHandlerMethods = new Method[6];
-
-    static {
-        try {
-            mLexHandlerMethods[0] = Tokenizer.class.getDeclaredMethod("_lexRule0");
-            mLexHandlerMethods[1] = Tokenizer.class.getDeclaredMethod("_lexRule1");
-            mLexHandlerMethods[2] = Tokenizer.class.getDeclaredMethod("_lexRule2");
-            mLexHandlerMethods[3] = Tokenizer.class.getDeclaredMethod("_lexRule3");
-            mLexHandlerMethods[4] = Tokenizer.class.getDeclaredMethod("_lexRule4");
-            mLexHandlerMethods[5] = Tokenizer.class.getDeclaredMethod("_lexRule5");
-        } catch (Exception ignore) {
-            // Ignore since the methods are exact.
-        }
-    }
-
-    ;
-
-    private static final Pattern NL_RE = Pattern.compile("\\n");
-
-    /**
-     * Lex rules grouped by tokenizer state.
-     *
-     * Example:
-     *
-     *   { "INITIAL", new Integer[] { 0, 1, 2, 3 } },
-     *   ...
-     */
-    private static Map<String, Integer[]> mLexRulesByConditions = new HashMap<String, Integer[]>() {{
-        put("INITIAL", new Integer[]{0, 1, 2, 3, 4, 5});
-    }};
-
-    /**
-     * Stack of lexer states.
-     */
-    private Stack<String> mStates = null;
+    public static Token EOF_TOKEN = new Token(EOF_TYPE, Tokenizer.EOF);
 
     /**
      *  Cursor tracking current position.
@@ -353,47 +240,6 @@ class Tokenizer {
     int mTokenStartColumn;
     int mTokenEndColumn;
 
-    /**
-     * In case if a token handler returns multiple tokens from one rule,
-     * we still return tokens one by one in the `getNextToken`, putting
-     * other "fake" tokens into the queue. If there is still something in
-     * this queue, it's just returned.
-     */
-    private Queue<String> mTokensQueue = null;
-
-    /**
-     * Lex rule handlers.
-     *
-     * Example:
-     *
-     *   public String _lexRule1() {
-     *     return "NUMBER";
-     *   }
-     */
-    String _lexRule0() {
-        return "'('";
-    }
-
-    String _lexRule1() {
-        return "')'";
-    }
-
-    String _lexRule2() {
-        return null;
-    }
-
-    String _lexRule3() {
-        return "STRING";
-    }
-
-    String _lexRule4() {
-        return "NUMBER";
-    }
-
-    String _lexRule5() {
-        return "SYMBOL";
-    }
-
     // --------------------------------------------
     // Constructor.
 
@@ -409,116 +255,89 @@ class Tokenizer {
         mString = tokenizingString;
         mCursor = 0;
 
-        mStates = new Stack<String>();
-        begin("INITIAL");
-
-        mTokensQueue = new LinkedList<String>();
-
         // Init locations.
 
         mCurrentLine = 1;
         mCurrentColumn = 0;
         mCurrentLineBeginOffset = 0;
-
-        // Token locationis.
-        mTokenStartOffset = 0;
-        mTokenEndOffset = 0;
-        mTokenStartLine = 0;
-        mTokenEndLine = 0;
-        mTokenStartColumn = 0;
-        mTokenEndColumn = 0;
-    }
-
-    // --------------------------------------------
-    // States.
-
-    public String getCurrentState() {
-        return mStates.peek();
-    }
-
-    public void pushState(String state) {
-        mStates.push(state);
-    }
-
-    public void begin(String state) {
-        pushState(state);
-    }
-
-    public String popState() {
-        if (mStates.size() > 1) {
-            return mStates.pop();
-        }
-        return getCurrentState();
     }
 
     // --------------------------------------------
     // Tokenizing.
 
     public Token getNextToken() throws ParseException {
-        // Something was queued, return it.
-        if (mTokensQueue.size() > 0) {
-            return toToken(mTokensQueue.remove(), "");
-        }
-
-        if (!hasMoreTokens()) {
+        final int type = nextToken();
+        if (type == EOF_TYPE) {
             return EOF_TOKEN;
         }
 
-        String str = mString.substring(mCursor);
-        Integer[] lexRulesForState = mLexRulesByConditions.get(getCurrentState());
-
-        for (int i = 0; i < lexRulesForState.length; i++) {
-            String matched = match(str, mLexPatterns[i]);
+        yytext = mString.substring(mTokenStartOffset, mTokenEndOffset);
+        yyleng = yytext.length();
 
-            // Manual handling of EOF token (the end of String). Return it
-            // as `EOF` symbol.
-            if (str.length() == 0 && matched != null && matched.length() == 0) {
-                mCursor++;
-            }
-
-            if (matched != null) {
-                this.yytext = matched;
-                this.yyleng = matched.length();
-
-                Object tokenType = null;
-
-                try {
-                    tokenType = mLexHandlerMethods[i].invoke(this);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new ParseException(e.getMessage(), 0);
-                }
-
-                if (tokenType == null) {
-                    return getNextToken();
-                }
+        return new Token(
+                type,
+                yytext,
+                new YyLoc(
+                        mTokenStartOffset,
+                        mTokenEndOffset,
+                        mTokenStartLine,
+                        mTokenEndLine,
+                        mTokenStartColumn,
+                        mTokenEndColumn
+                )
+        );
+    }
 
-                if (tokenType.getClass().isArray()) {
-                    String[] tokensArray = (String[]) tokenType;
-                    tokenType = (String) tokensArray[0];
-                    if (tokensArray.length > 1) {
-                        for (int j = 1; j < tokensArray.length; j++) {
-                            mTokensQueue.add(tokensArray[j]);
-                        }
-                    }
-                }
+    /**
+     * Scans the next token without allocating it: returns its type, the
+     * location is left in the mToken* fields.
+     */
+    int nextToken() throws ParseException {
+        skipWhitespace();
 
-                return toToken((String) tokenType, matched);
-            }
+        if (!hasMoreTokens()) {
+            return EOF_TYPE;
         }
 
         if (isEOF()) {
             mCursor++;
-            return EOF_TOKEN;
+            return EOF_TYPE;
         }
 
-        throwUnexpectedToken(
-                str.charAt(0),
-                mCurrentLine,
-                mCurrentColumn
-        );
+        final String s = mString;
+        final int start = mCursor;
+        final char c = s.charAt(start);
+        int end = start + 1;
+        final int type;
+
+        if (c == '(') {
+            type = LPAREN;
+        } else if (c == ')') {
+            type = RPAREN;
+        } else if (c == '"') {
+            final int close = s.indexOf('"', end);
+            if (close < 0) {
+                throwUnexpectedToken(c, mCurrentLine, mCurrentColumn);
+            }
+            end = close + 1;
+            type = STRING;
+        } else if (isDigit(c)) {
+            while (end < s.length() && isDigit(s.charAt(end))) {
+                end++;
+            }
+            type = NUMBER;
+        } else if (isSymbolChar(c)) {
+            while (end < s.length() && isSymbolChar(s.charAt(end))) {
+                end++;
+            }
+            type = SYMBOL;
+        } else {
+            throwUnexpectedToken(c, mCurrentLine, mCurrentColumn);
+            return -1;
+        }
 
-        return null;
+        captureLocation(type, start, end);
+        return type;
     }
 
     /**
@@ -538,42 +357,56 @@ class Tokenizer {
         );
     }
 
-    private void captureLocation(String matched) {
-        // Absolute offsets.
-        mTokenStartOffset = mCursor;
+    private void skipWhitespace() {
+        final String s = mString;
+        int i = mCursor;
+        while (i < s.length() && isWhitespace(s.charAt(i))) {
+            if (s.charAt(i) == '\n') {
+                mCurrentLine++;
+                mCurrentLineBeginOffset = i + 1;
+            }
+            i++;
+        }
+        if (i != mCursor) {
+            mCursor = i;
+            mCurrentColumn = i - mCurrentLineBeginOffset;
+        }
+    }
 
-        // Line-based locations, start.
+    private void captureLocation(int type, int start, int end) {
+        mTokenStartOffset = start;
         mTokenStartLine = mCurrentLine;
-        mTokenStartColumn = mTokenStartOffset - mCurrentLineBeginOffset;
-
-        // Extract `\n` in the matched token.
-        Matcher nlMatcher = NL_RE.matcher(matched);
-        while (nlMatcher.find()) {
-            mCurrentLine++;
-            mCurrentLineBeginOffset = mTokenStartOffset + nlMatcher.start() + 1;
+        mTokenStartColumn = start - mCurrentLineBeginOffset;
+
+        // strings may span lines
+        if (type == STRING) {
+            for (int i = start; i < end; i++) {
+                if (mString.charAt(i) == '\n') {
+                    mCurrentLine++;
+                    mCurrentLineBeginOffset = i + 1;
+                }
+            }
         }
 
-        mTokenEndOffset = mCursor + matched.length();
-
-        // Line-based locations, end.
+        mCursor = end;
+        mTokenEndOffset = end;
         mTokenEndLine = mCurrentLine;
-        mTokenEndColumn = mCurrentColumn =
-                (mTokenEndOffset - mCurrentLineBeginOffset);
+        mTokenEndColumn = mCurrentColumn = end - mCurrentLineBeginOffset;
     }
 
-    private Token toToken(String tokenType, String yytext) {
-        return new Token(
-                mTokensMap.get(tokenType),
-                yytext,
-                new YyLoc(
-                        mTokenStartOffset,
-                        mTokenEndOffset,
-                        mTokenStartLine,
-                        mTokenEndLine,
-                        mTokenStartColumn,
-                        mTokenEndColumn
-                )
-        );
+    // \s without the UNICODE_CHARACTER_CLASS flag
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isSymbolChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c)
+                || c == '_' || c == '-' || c == '+' || c == '*' || c == '='
+                || c == '!' || c == '<' || c == '>' || c == '/';
     }
 
     public boolean hasMoreTokens() {
@@ -584,17 +417,6 @@ class Tokenizer {
         return mCursor == mString.length();
     }
 
-    private String match(String str, Pattern re) {
-        Matcher m = re.matcher(str);
-        String v = null;
-        if (m.find()) {
-            v = m.group(0);
-            captureLocation(v);
-            mCursor += v.length();
-        }
-        return v;
-    }
-
     public String get() {
         return mString;
     }
@@ -603,26 +425,16 @@ class Tokenizer {
 // --------------------------------------------
 // Parser.
 
-class StackEntry {
-    public int symbol;
-    public Object semanticValue;
-    public YyLoc loc;
-
-    public StackEntry(int symbol, Object semanticValue, YyLoc loc) {
-        this.symbol = symbol;
-        this.semanticValue = semanticValue;
-        this.loc = loc;
-    }
-}
-
 /**
- * Base class for the parser. Implements LR parsing algorithm.
+ * LR parser. Implements LR parsing algorithm over integer tables and builds
+ * the syntax tree into a flat {@link Ast}.
  *
- * Should implement at least the following API:
+ * Grammar:
  *
- * - parse(String StringToParse): object
- * - setTokenizer(Tokenizer tokenizer): void, or equivalent Tokenizer
- *   accessor property with a setter.
+ *   Exp         : Atom | List
+ *   Atom        : NUMBER | STRING | SYMBOL
+ *   List        : '(' ListEntries ')'
+ *   ListEntries : ListEntries Exp | %empty
  */
 public class Parser {
 
@@ -638,11 +450,10 @@ public class Parser {
      *
      * Non-terminal indices are 0-Last Non-terminal. LR-algorithm uses
      * length of RHS to pop symbols from the stack; this length is stored
-     * as the second element of a record. The last element is an optional
-     * name of the semantic action handler. The first record is always
+     * as the second element of a record. The first record is always
      * a special marker {-1, -1} entry representing an augmented production.
      */
-    private static int[][] mProductions = {
+    private static final int[][] mProductions = {
             {-1, 1},
             {0, 1},
             {0, 1},
@@ -655,158 +466,84 @@ public class Parser {
     };
 
     /**
-     * Cache for the handler methods.
-     *
-     * Example:
-     *
-     *   mProductionHandlerMethods[0] = Parser.class.getDeclaredMethod("_handler0");
-     *   ...
+     * Non-terminals.
      */
-    private static final Method[] mProductionHandlerMethods = new Method[9];
-
-    static {
-        try {
-            mProductionHandlerMethods[0] = Parser.class.getDeclaredMethod("_handler0");
-            mProductionHandlerMethods[1] = Parser.class.getDeclaredMethod("_handler1");
-            mProductionHandlerMethods[2] = Parser.class.getDeclaredMethod("_handler2");
-            mProductionHandlerMethods[3] = Parser.class.getDeclaredMethod("_handler3");
-            mProductionHandlerMethods[4] = Parser.class.getDeclaredMethod("_handler4");
-            mProductionHandlerMethods[5] = Parser.class.getDeclaredMethod("_handler5");
-            mProductionHandlerMethods[6] = Parser.class.getDeclaredMethod("_handler6");
-            mProductionHandlerMethods[7] = Parser.class.getDeclaredMethod("_handler7");
-            mProductionHandlerMethods[8] = Parser.class.getDeclaredMethod("_handler8");
-        } catch (Exception ignore) {
-            // Ignore since the methods are exact.
-        }
-    }
-
-    ;
+    private static final int EXP = 0;
+    private static final int LIST_ENTRIES = 3;
+    private static final int NON_TERMINALS = 4;
 
     /**
-     * Actual parsing table. An array of records, where
-     * index is a state obj, and a value is a dictionary
-     * from an encoded symbol (obj) to parsing action.
-     * The parsing action can be "Shift/s", "Reduce/r", a state
-     * transition obj, or "Accept/acc".
-     *
-     * Example:
-     *
-     *   mTable.add(
-     *     new HashMap<Integer, String>() {{
-     *       put(0, "1");
-     *       put(3, "s2");
-     *       put(4, "s3");
-     *     }}
-     *   );
-     *   ...
+     * Parsing actions, the kind in the low two bits, the next state or
+     * the production above them. 0 is an error.
      */
-    private static List<Map<Integer, String>> mTable = new ArrayList<Map<Integer, String>>();
-
-    static {
-        mTable.add(new HashMap<Integer, String>() {{
-            put(0, "1");
-            put(1, "2");
-            put(2, "3");
-            put(4, "s4");
-            put(5, "s5");
-            put(6, "s6");
-            put(7, "s7");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(9, "acc");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r1");
-            put(5, "r1");
-            put(6, "r1");
-            put(7, "r1");
-            put(8, "r1");
-            put(9, "r1");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r2");
-            put(5, "r2");
-            put(6, "r2");
-            put(7, "r2");
-            put(8, "r2");
-            put(9, "r2");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r3");
-            put(5, "r3");
-            put(6, "r3");
-            put(7, "r3");
-            put(8, "r3");
-            put(9, "r3");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r4");
-            put(5, "r4");
-            put(6, "r4");
-            put(7, "r4");
-            put(8, "r4");
-            put(9, "r4");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r5");
-            put(5, "r5");
-            put(6, "r5");
-            put(7, "r5");
-            put(8, "r5");
-            put(9, "r5");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(3, "8");
-            put(4, "r8");
-            put(5, "r8");
-            put(6, "r8");
-            put(7, "r8");
-            put(8, "r8");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(0, "10");
-            put(1, "2");
-            put(2, "3");
-            put(4, "s4");
-            put(5, "s5");
-            put(6, "s6");
-            put(7, "s7");
-            put(8, "s9");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r6");
-            put(5, "r6");
-            put(6, "r6");
-            put(7, "r6");
-            put(8, "r6");
-            put(9, "r6");
-        }});
-        mTable.add(new HashMap<Integer, String>() {{
-            put(4, "r7");
-            put(5, "r7");
-            put(6, "r7");
-            put(7, "r7");
-            put(8, "r7");
-        }});
+    private static final int ERR = 0;
+    private static final int SHIFT = 1;
+    private static final int REDUCE = 2;
+    private static final int ACC = 3;
+
+    private static int s(int state) {
+        return state << 2 | SHIFT;
     }
 
-    ;
+    private static int r(int production) {
+        return production << 2 | REDUCE;
+    }
+
+    /**
+     * Action table, indexed by state and by terminal minus the number of
+     * non-terminals.
+     */
+    private static final int[][] mActions = {
+            //       NUMBER  STRING  SYMBOL  '('    ')'    $
+            /* 0 */ {s(4),  s(5),  s(6),  s(7),  ERR,   ERR},
+            /* 1 */ {ERR,   ERR,   ERR,   ERR,   ERR,   ACC},
+            /* 2 */ {r(1),  r(1),  r(1),  r(1),  r(1),  r(1)},
+            /* 3 */ {r(2),  r(2),  r(2),  r(2),  r(2),  r(2)},
+            /* 4 */ {r(3),  r(3),  r(3),  r(3),  r(3),  r(3)},
+            /* 5 */ {r(4),  r(4),  r(4),  r(4),  r(4),  r(4)},
+            /* 6 */ {r(5),  r(5),  r(5),  r(5),  r(5),  r(5)},
+            /* 7 */ {r(8),  r(8),  r(8),  r(8),  r(8),  ERR},
+            /* 8 */ {s(4),  s(5),  s(6),  s(7),  s(9),  ERR},
+            /* 9 */ {r(6),  r(6),  r(6),  r(6),  r(6),  r(6)},
+            /*10 */ {r(7),  r(7),  r(7),  r(7),  r(7),  ERR},
+    };
 
     /**
-     * Parsing stack. Stores instances of StackEntry.
+     * Goto table, indexed by state and by non-terminal, -1 when there is none.
      */
-    Stack<StackEntry> mValueStack = null;
+    private static final int[][] mGotos = {
+            //       Exp  Atom  List  ListEntries
+            /* 0 */ {1,   2,    3,    -1},
+            /* 1 */ {-1,  -1,   -1,   -1},
+            /* 2 */ {-1,  -1,   -1,   -1},
+            /* 3 */ {-1,  -1,   -1,   -1},
+            /* 4 */ {-1,  -1,   -1,   -1},
+            /* 5 */ {-1,  -1,   -1,   -1},
+            /* 6 */ {-1,  -1,   -1,   -1},
+            /* 7 */ {-1,  -1,   -1,   8},
+            /* 8 */ {10,  2,    3,    -1},
+            /* 9 */ {-1,  -1,   -1,   -1},
+            /*10 */ {-1,  -1,   -1,   -1},
+    };
 
     /**
-     * States stack.
+     * Parsing stack: states and semantic values, which are Ast nodes, or
+     * for ListEntries the start of its items in mItems.
      */
-    Stack<Integer> mStatesStack = null;
+    private int[] mStates = new int[64];
+    private int[] mValues = new int[64];
+    private int mTop;
 
     /**
-     * __ holds a result value from a production
-     * handler. In the grammar usually used as $$.
+     * Items of the lists being parsed, the innermost list at the end.
      */
-    StackEntry __ = null;
+    private int[] mItems = new int[64];
+    private int mItemsCount;
+
+    private Ast mAst;
+
+    private String[] mSymbols;
+    private int mSymbolsCount;
 
     /**
      * Constructor.
@@ -822,224 +559,176 @@ public class Parser {
     }
 
     /**
-     * Production handles. The handlers receive arguments as _1, _2, etc.
-     * The result is always stored in __.
-     *
-     * In grammar:
-     *
-     * { $$ = (Integer)$1 + (Integer)$3 }
-     *
-     * Generated:
-     *
-     * public void _handler0() {
-     *   // Prologue
-     *   StackEntry _3 = mValueStack.pop();
-     *   mValueStack.pop();
-     *   StackEntry _1 = mValueStack.pop();
-     *
-     *   __.semanticValue = (Integer)(_1.semanticValue) + (Integer)(_3.semanticValue);
-     * }
+     * Semantic action of a production, the values of its RHS are at
+     * mValues[top - RHS.Length + 1 .. top]. Returns the value of the LHS.
      */
-    void _handler0() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = (_1.semanticValue);
-    }
-
-    void _handler1() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = (_1.semanticValue);
-    }
-
-    void _handler2() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = (_1.semanticValue);
-    }
-
-    void _handler3() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = new Exp(Integer.parseInt(String.valueOf((_1.semanticValue))));
-    }
-
-    void _handler4() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = new Exp(String.valueOf((_1.semanticValue)));
-    }
-
-    void _handler5() {
-        // Semantic values prologue.
-        StackEntry _1 = mValueStack.pop();
-
-        __.semanticValue = new Exp(String.valueOf((_1.semanticValue)));
-    }
-
-    void _handler6() {
-        // Semantic values prologue.
-        mValueStack.pop();
-        StackEntry _2 = mValueStack.pop();
-        mValueStack.pop();
-
-        __.semanticValue = (_2.semanticValue);
-    }
-
-    void _handler7() {
-        // Semantic values prologue.
-        StackEntry _2 = mValueStack.pop();
-        StackEntry _1 = mValueStack.pop();
-
-        ((Exp) ((_1.semanticValue))).list.add((Exp) (_2.semanticValue));
-        __.semanticValue = (_1.semanticValue);
+    private int reduce(int production, int top) {
+        return switch (production) {
+            // Exp : Atom | List; Atom : NUMBER | STRING | SYMBOL,
+            // atoms are added to the tree when they are shifted
+            case 1, 2, 3, 4, 5 -> mValues[top];
+            // List : '(' ListEntries ')'
+            case 6 -> {
+                final int from = mValues[top - 1];
+                final int list = mAst.addList(mItems, from, mItemsCount);
+                mItemsCount = from;
+                yield list;
+            }
+            // ListEntries : ListEntries Exp
+            case 7 -> {
+                if (mItemsCount == mItems.length) {
+                    mItems = Arrays.copyOf(mItems, mItemsCount * 2);
+                }
+                mItems[mItemsCount++] = mValues[top];
+                yield mValues[top - 1];
+            }
+            // ListEntries : %empty
+            case 8 -> mItemsCount;
+            default -> throw new IllegalStateException("unknown production " + production);
+        };
+    }
+
+    private int shiftedValue(int tokenType) throws ParseException {
+        final String source = tokenizer.get();
+        final int start = tokenizer.mTokenStartOffset;
+        final int end = tokenizer.mTokenEndOffset;
+        return switch (tokenType) {
+            case Tokenizer.NUMBER -> {
+                try {
+                    yield mAst.addNumber(Integer.parseInt(source, start, end, 10));
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Number is out of range: " + source.substring(start, end), start);
+                }
+            }
+            case Tokenizer.STRING -> mAst.addString(ExpType.STRING, source.substring(start + 1, end - 1));
+            case Tokenizer.SYMBOL -> mAst.addString(ExpType.SYMBOL, symbol(source, start, end));
+            default -> -1;
+        };
     }
 
-    void _handler8() {
-        // Semantic values prologue.
-
-
-        __.semanticValue = new Exp(new ArrayList<Exp>());
+    /**
+     * Names repeat a lot in a program, each distinct one is taken from the
+     * source once. Open addressing table, looked up by the characters.
+     */
+    private String symbol(String source, int start, int end) {
+        final int length = end - start;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        final int mask = mSymbols.length - 1;
+        int slot = hash & mask;
+        for (String existed; (existed = mSymbols[slot]) != null; slot = (slot + 1) & mask) {
+            if (existed.length() == length && source.regionMatches(start, existed, 0, length)) {
+                return existed;
+            }
+        }
+        final String symbol = source.substring(start, end);
+        mSymbols[slot] = symbol;
+        if (++mSymbolsCount * 2 > mSymbols.length) {
+            final String[] symbols = mSymbols;
+            mSymbols = new String[symbols.length * 2];
+            for (String sym : symbols) {
+                if (sym != null) {
+                    int i = sym.hashCode() & (mSymbols.length - 1);
+                    while (mSymbols[i] != null) {
+                        i = (i + 1) & (mSymbols.length - 1);
+                    }
+                    mSymbols[i] = sym;
+                }
+            }
+        }
+        return symbol;
+    }
+
+    public Ast parse(String str) throws ParseException {
+        final var event = new VmEvents.Parse();
+        event.begin();
+        final Ast ast = parseLr(str);
+        event.end();
+        if (event.shouldCommit()) {
+            event.sourceLength = str.length();
+            event.nodes = ast.nodesCount();
+            event.commit();
+        }
+        return ast;
     }
 
     /**
      * Main parsing method which applies LR-algorithm.
      */
-    public Object parse(String str) throws ParseException {
+    private Ast parseLr(String str) throws ParseException {
         // On parse begin hook.
         ParserEvents.onParseBegin(str);
 
         tokenizer.initString(str);
+        mAst = new Ast();
+        mItemsCount = 0;
+        mSymbols = new String[64];
+        mSymbolsCount = 0;
 
         // Initialize the parsing stack to the initial state 0.
-        mValueStack = new Stack<StackEntry>();
-        mStatesStack = new Stack<Integer>();
-        mStatesStack.push(0);
-
-        Token token = tokenizer.getNextToken();
-        Token shiftedToken = null;
-
-        do {
-            if (token == null) {
-                unexpectedEndOfInput();
-            }
+        mTop = 0;
+        mStates[0] = 0;
 
-            int state = mStatesStack.peek();
-            int column = token.type;
+        int token = tokenizer.nextToken();
 
-            if (!mTable.get(state).containsKey(column)) {
-                unexpectedToken(token);
-                break;
-            }
-
-            String entry = mTable.get(state).get(column);
-
-            // ---------------------------------------------------
-            // "Shift". Shift-entries always have 's' as their
-            // first char, after which goes *next state obj*, e.g. "s5".
-            // On shift we push the token, and the next state on the stack.
-            if (entry.charAt(0) == 's') {
-                YyLoc loc = null;
-
-                // Push token.
-                mValueStack.push(new StackEntry(token.type, token.value, token.loc));
-
-                // Push next state obj: "s5" -> 5
-                mStatesStack.push(Integer.valueOf(entry.substring(1)));
-
-                shiftedToken = token;
-                token = tokenizer.getNextToken();
-            }
+        for (; ; ) {
+            final int entry = mActions[mStates[mTop]][token - NON_TERMINALS];
 
-            // ---------------------------------------------------
-            // "Reduce". Reduce-entries always have 'r' as their
-            // first char, after which goes *production obj* to
-            // reduce by, e.g. "r3" - reduce by production 3 in the grammar.
-            // On reduce, we pop of the stack obj of symbols on the RHS
-            // of the production, and their pushed state numbers, i.e.
-            // total RHS * 2 symbols.
-            else if (entry.charAt(0) == 'r') {
-                // "r3" -> 3
-                int productionNumber = Integer.valueOf(entry.substring(1));
-                int[] production = mProductions[productionNumber];
-
-                // The length of RHS is stored in the production[1].
-                int rhsLength = production[1];
-                if (rhsLength != 0) {
-                    while (rhsLength-- > 0) {
-                        // Pop the state obj.
-                        mStatesStack.pop();
-                    }
+            switch (entry & 3) {
+                // On shift we push the token value, and the next state on the stack.
+                case SHIFT -> {
+                    push(entry >>> 2, shiftedValue(token));
+                    token = tokenizer.nextToken();
                 }
-
-                int previousState = mStatesStack.peek();
-                int symbolToReduceWith = production[0];
-
-                __ = new StackEntry(symbolToReduceWith, null, null);
-
-                // Execute the semantic action handler.
-                this.tokenizer.yytext = shiftedToken != null ? shiftedToken.value : null;
-                this.tokenizer.yyleng = shiftedToken != null ? shiftedToken.value.length() : 0;
-
-                try {
-                    mProductionHandlerMethods[productionNumber].invoke(this);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new ParseException(e.getMessage(), 0);
+                // On reduce, we pop of the stack the symbols on the RHS of
+                // the production, and push its LHS with the goto state.
+                case REDUCE -> {
+                    final int[] production = mProductions[entry >>> 2];
+                    final int value = reduce(entry >>> 2, mTop);
+                    mTop -= production[1];
+                    push(mGotos[mStates[mTop]][production[0]], value);
                 }
+                // Accept. Pop starting production and its state obj.
+                case ACC -> {
+                    final int parsed = mValues[mTop--];
 
-                // Then push LHS onto the stack.
-                mValueStack.push(__);
+                    if (mTop != 0 || tokenizer.hasMoreTokens()) {
+                        unexpectedToken(token);
+                    }
 
-                // And the next state obj.
-                int nextState = Integer.valueOf(
-                        mTable.get(previousState).get(symbolToReduceWith)
-                );
+                    mAst.setRoot(parsed);
+                    final Ast ast = mAst;
+                    mAst = null;
+                    mSymbols = null;
+                    ParserEvents.onParseEnd(ast);
 
-                mStatesStack.push(nextState);
-            }
-            // ---------------------------------------------------
-            // Accept. Pop starting production and its state obj.
-            else if (entry.charAt(0) == 'a') {
-                // Pop state obj.
-                mStatesStack.pop();
-
-                // Pop the parsed value.
-                StackEntry parsed = mValueStack.pop();
-
-                if (
-                        mStatesStack.size() != 1 ||
-                                mStatesStack.peek() != 0 ||
-                                tokenizer.hasMoreTokens()
-                ) {
-                    unexpectedToken(token);
+                    return ast;
                 }
-
-                Object parsedValue = parsed.semanticValue;
-                ParserEvents.onParseEnd(parsedValue);
-
-                return parsedValue;
+                default -> unexpectedToken(token);
             }
+        }
+    }
 
-        } while (tokenizer.hasMoreTokens() || mStatesStack.size() > 1);
-
-        return null;
+    private void push(int state, int value) {
+        if (++mTop == mStates.length) {
+            mStates = Arrays.copyOf(mStates, mTop * 2);
+            mValues = Arrays.copyOf(mValues, mTop * 2);
+        }
+        mStates[mTop] = state;
+        mValues[mTop] = value;
     }
 
-    private void unexpectedToken(Token token) throws ParseException {
-        if (token.type == Tokenizer.EOF_TOKEN.type) {
+    private void unexpectedToken(int token) throws ParseException {
+        if (token == Tokenizer.EOF_TYPE) {
             unexpectedEndOfInput();
         }
 
         tokenizer.throwUnexpectedToken(
-                token.value.charAt(0),
-                token.loc.startLine,
-                token.loc.startColumn
+                tokenizer.get().charAt(tokenizer.mTokenStartOffset),
+                tokenizer.mTokenStartLine,
+                tokenizer.mTokenStartColumn
         );
     }
 
@@ -0,0 +1,222 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.FunctionObj;
+import org.starodubov.vm.value.Value;
+import org.starodubov.vm.value.ValueTypes;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary form of a {@link CompiledProgram}, big endian:
+ * <pre>
+ * magic "SVMC", format version, key length, key bytes
+ * globals:      count, then name and tagged initial value of each
+ * code objects: count, then name, arity, max stack, code length and code of each, main first
+ * constants:    for every code object in the same order, count and tagged values
+ * </pre>
+ * Code and functions in constant pools refer to code objects by index.
+ * Natives are written by name only, they are taken from the running vm.
+ */
+final class ProgramFormat {
+
+    // bump when this format changes, cache keys also cover the class files of the compiler
+    static final int VERSION = 4;
+
+    private static final int MAGIC = 0x53564D43;
+
+    private static final int TAG_NUMBER = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_BOOLEAN = 2;
+    private static final int TAG_VOID = 3;
+    private static final int TAG_CODE = 4;
+    private static final int TAG_FUNCTION = 5;
+    private static final int TAG_NATIVE = 6;
+
+    static void write(CompiledProgram program, byte[] key, OutputStream os) throws IOException {
+        final var out = new DataOutputStream(os);
+        final List<CodeObj> codeObjs = program.codeObjs();
+        final Map<CodeObj, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < codeObjs.size(); i++) {
+            index.put(codeObjs.get(i), i);
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(key.length);
+        out.write(key);
+
+        out.writeInt(program.globalNames().size());
+        for (int i = 0; i < program.globalNames().size(); i++) {
+            writeString(out, program.globalNames().get(i));
+            writeValue(out, program.globalValues().get(i), index);
+        }
+
+        out.writeInt(codeObjs.size());
+        for (var co : codeObjs) {
+            writeString(out, co.name());
+            out.writeInt(co.arity());
+            out.writeInt(co.bytecode().maxStack());
+            out.writeInt(co.bytecode().size());
+            final int[] code = co.bytecode().code();
+            for (int i = 0; i < co.bytecode().size(); i++) {
+                out.writeInt(code[i]);
+            }
+        }
+        for (var co : codeObjs) {
+            out.writeInt(co.constants().size());
+            for (var c : co.constants()) {
+                writeValue(out, c, index);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the program or null when the data is not a program of this version with this key
+     */
+    static CompiledProgram read(ByteBuffer in, byte[] key) {
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            final byte[] storedKey = new byte[length(in, 1)];
+            in.get(storedKey);
+            if (!Arrays.equals(storedKey, key)) {
+                return null;
+            }
+
+            final int globalsCount = length(in, 1);
+            final List<String> names = new ArrayList<>(globalsCount);
+            final List<Object> globalValues = new ArrayList<>(globalsCount);
+            for (int i = 0; i < globalsCount; i++) {
+                names.add(readString(in));
+                globalValues.add(readValue(in));
+            }
+
+            final int count = length(in, 1);
+            final List<CodeObj> codeObjs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final var co = CodeObj.newCo(readString(in), in.getInt());
+                final int maxStack = in.getInt();
+                final int[] code = new int[length(in, Integer.BYTES)];
+                in.asIntBuffer().get(code);
+                in.position(in.position() + code.length * Integer.BYTES);
+                co.bytecode().replace(code);
+                co.bytecode().setMaxStack(maxStack);
+                co.freeze();
+                codeObjs.add(co);
+            }
+            final List<FunctionObj> fns = codeObjs.stream().map(FunctionObj::new).toList();
+            for (var co : codeObjs) {
+                final int constants = length(in, 1);
+                for (int i = 0; i < constants; i++) {
+                    co.addConst(resolve(readValue(in), codeObjs, fns));
+                }
+            }
+
+            final List<Value> values = new ArrayList<>(globalsCount);
+            for (var v : globalValues) {
+                values.add(resolve(v, codeObjs, fns));
+            }
+            return new CompiledProgram(fns.getFirst(), codeObjs, names, values);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                 | NoSuchElementException e) {
+            // truncated or damaged file
+            return null;
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Value v, Map<CodeObj, Integer> index) throws IOException {
+        switch (v.type()) {
+            case NUMBER -> {
+                out.writeByte(TAG_NUMBER);
+                out.writeLong(Value.asNumber(v));
+            }
+            case STRING -> {
+                out.writeByte(TAG_STRING);
+                writeString(out, Value.asString(v));
+            }
+            case BOOLEAN -> {
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(Value.asBoolean(v));
+            }
+            case VOID -> out.writeByte(TAG_VOID);
+            case CODE -> {
+                out.writeByte(TAG_CODE);
+                out.writeInt(codeIndex(index, Value.asCode(v)));
+            }
+            case FUNCTION -> {
+                out.writeByte(TAG_FUNCTION);
+                out.writeInt(codeIndex(index, Value.asFuntion(v).co()));
+            }
+            case NATIVE -> out.writeByte(TAG_NATIVE);
+        }
+    }
+
+    private static int codeIndex(Map<CodeObj, Integer> index, CodeObj co) {
+        final Integer idx = index.get(co);
+        if (idx == null) {
+            throw new IllegalStateException("code object %s is not part of the program".formatted(co.name()));
+        }
+        return idx;
+    }
+
+    // a Value, or an int[]{tag, index} for code and functions, which are resolved later
+    private static Object readValue(ByteBuffer in) {
+        final int tag = in.get();
+        return switch (tag) {
+            case TAG_NUMBER -> Value.number(in.getLong());
+            case TAG_STRING -> Value.string(readString(in));
+            case TAG_BOOLEAN -> Value.bool(in.get() != 0);
+            case TAG_VOID -> Value.VOID;
+            case TAG_CODE, TAG_FUNCTION -> new int[]{tag, in.getInt()};
+            case TAG_NATIVE -> NATIVE_PLACEHOLDER;
+            default -> throw new IllegalArgumentException("unknown value tag " + tag);
+        };
+    }
+
+    private static Value resolve(Object v, List<CodeObj> codeObjs, List<FunctionObj> fns) {
+        if (v instanceof int[] ref) {
+            return ref[0] == TAG_CODE
+                    ? Value.code(codeObjs.get(ref[1]))
+                    : new Value(ValueTypes.FUNCTION, fns.get(ref[1]));
+        }
+        return (Value) v;
+    }
+
+    // stands for a native until the program runs in a vm which has it
+    private static final Value NATIVE_PLACEHOLDER = new Value(ValueTypes.NATIVE, null);
+
+    // reads an array length, checking the data is there
+    private static int length(ByteBuffer in, int elementSize) {
+        final int n = in.getInt();
+        if (n < 0 || (long) n * elementSize > in.remaining()) {
+            throw new IllegalArgumentException("bad length " + n);
+        }
+        return n;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final byte[] bytes = new byte[length(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
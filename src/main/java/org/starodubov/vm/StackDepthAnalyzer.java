@@ -0,0 +1,90 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * Computes how many stack slots a frame of a code object can occupy, counting
+ * from its base pointer: the callee and the arguments, locals and temporaries.
+ * The vm makes room for that once when it enters the code, so pushes do not
+ * check the stack bounds.
+ */
+final class StackDepthAnalyzer {
+
+    static int maxStack(CodeObj co) {
+        final int[] code = co.bytecode().code();
+        final int[] depths = depths(co);
+        int max = depths[0];
+        for (int offset = 0; offset < co.bytecode().size(); offset += 1 + OpCodes.operandsCount(code[offset])) {
+            if (depths[offset] != -1) {
+                max = Math.max(max, depths[offset] + effect(code[offset], code, offset));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return depth of the stack before each instruction, by offset, -1 where
+     * no instruction starts or the instruction is unreachable
+     */
+    static int[] depths(CodeObj co) {
+        final int[] code = co.bytecode().code();
+        final int size = co.bytecode().size();
+        final int[] depths = new int[size + 1];
+        Arrays.fill(depths, -1);
+        final Deque<Integer> work = new ArrayDeque<>();
+
+        // main has no callee slot, a function starts with itself and its arguments
+        depths[0] = co.name().equals("main") ? 0 : co.arity() + 1;
+        work.push(0);
+
+        while (!work.isEmpty()) {
+            final int offset = work.pop();
+            if (offset >= size) {
+                continue;
+            }
+            final int opcode = code[offset];
+            final int next = offset + 1 + OpCodes.operandsCount(opcode);
+            final int depth = depths[offset] + effect(opcode, code, offset);
+
+            final int jump = OpCodes.jumpOperand(opcode);
+            if (jump != -1) {
+                flow(depths, work, code[offset + 1 + jump], depth);
+            }
+            if (opcode != OP_JMP && opcode != OP_RETURN && opcode != OP_HALT && opcode != OP_TAIL_CALL) {
+                flow(depths, work, next, depth);
+            }
+        }
+        return depths;
+    }
+
+    private static void flow(int[] depths, Deque<Integer> work, int target, int depth) {
+        if (depths[target] == -1) {
+            depths[target] = depth;
+            work.push(target);
+        } else if (depths[target] != depth) {
+            // the compiler keeps the stack balanced on every path
+            throw new IllegalStateException("stack depth mismatch at 0x%X: %d and %d"
+                    .formatted(target, depths[target], depth));
+        }
+    }
+
+    // stack slots an instruction adds, negative when it removes
+    static int effect(int opcode, int[] code, int offset) {
+        return switch (opcode) {
+            case OP_CONST, OP_GET_GLOBAL, OP_GET_LOCAL, OP_INC_LOCAL, OP_INC_GLOBAL, OP_ADD_LOCALS -> 1;
+            case OP_ADD, OP_ADD_NUM, OP_ADD_STR, OP_SUB, OP_MUL, OP_DIV,
+                 OP_COMPARE, OP_LT_NUM, OP_GT_NUM, OP_EQ_NUM, OP_LE_NUM, OP_GE_NUM, OP_NE_NUM,
+                 OP_JMP_IF_FALSE, OP_POP -> -1;
+            case OP_CMP_JMP_IF_FALSE -> -2;
+            // the callee and the arguments are replaced with the result
+            case OP_SCOPE_EXIT, OP_CALL -> -code[offset + 1];
+            default -> 0;
+        };
+    }
+}
@@ -0,0 +1,84 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.starodubov.vm.OpCodes.*;
+
+/**
+ * Peephole pass replacing the most frequent instruction sequences with
+ * superinstructions, so a loop iteration takes fewer dispatches:
+ * <pre>
+ * GET_LOCAL a, CONST k, ADD, SET_LOCAL a     -> INC_LOCAL a k
+ * GET_GLOBAL g, CONST k, ADD, SET_GLOBAL g   -> INC_GLOBAL g k
+ * GET_LOCAL a, GET_LOCAL b, ADD              -> ADD_LOCALS a b
+ * COMPARE c, JMP_IF_FALSE addr               -> CMP_JMP_IF_FALSE c addr
+ * CONST k, ADD                               -> ADD_CONST k
+ * CONST k, SUB                               -> SUB_CONST k
+ * </pre>
+ * A sequence is fused only if no jump lands inside it.
+ */
+final class SuperinstructionSelector {
+
+    static void select(CodeObj co) {
+        final List<Instruction> in = Instruction.decode(co.bytecode().code(), co.bytecode().size());
+        final List<Instruction> out = new ArrayList<>(in.size());
+
+        int i = 0;
+        while (i < in.size()) {
+            final Instruction first = in.get(i);
+            int consumed = 1;
+            if (matches(in, i, OP_GET_LOCAL, OP_CONST, OP_ADD, OP_SET_LOCAL)
+                    && first.operands[0] == in.get(i + 3).operands[0]) {
+                fuse(first, OP_INC_LOCAL, first.operands[0], in.get(i + 1).operands[0]);
+                consumed = 4;
+            } else if (matches(in, i, OP_GET_GLOBAL, OP_CONST, OP_ADD, OP_SET_GLOBAL)
+                    && first.operands[0] == in.get(i + 3).operands[0]) {
+                fuse(first, OP_INC_GLOBAL, first.operands[0], in.get(i + 1).operands[0]);
+                consumed = 4;
+            } else if (matches(in, i, OP_GET_LOCAL, OP_GET_LOCAL, OP_ADD)) {
+                fuse(first, OP_ADD_LOCALS, first.operands[0], in.get(i + 1).operands[0]);
+                consumed = 3;
+            } else if (matches(in, i, OP_COMPARE, OP_JMP_IF_FALSE)) {
+                final Instruction jmp = in.get(i + 1);
+                fuse(first, OP_CMP_JMP_IF_FALSE, first.operands[0], jmp.operands[0]);
+                first.target = jmp.target;
+                consumed = 2;
+            } else if (matches(in, i, OP_CONST, OP_ADD)) {
+                fuse(first, OP_ADD_CONST, first.operands[0]);
+                consumed = 2;
+            } else if (matches(in, i, OP_CONST, OP_SUB)) {
+                fuse(first, OP_SUB_CONST, first.operands[0]);
+                consumed = 2;
+            }
+
+            out.add(first);
+            i += consumed;
+        }
+
+        if (out.size() != in.size()) {
+            co.bytecode().replace(Instruction.encode(out));
+        }
+    }
+
+    private static boolean matches(List<Instruction> in, int from, int... opcodes) {
+        if (from + opcodes.length > in.size()) {
+            return false;
+        }
+        for (int i = 0; i < opcodes.length; i++) {
+            final Instruction instruction = in.get(from + i);
+            if (instruction.opcode != opcodes[i] || (i > 0 && instruction.jumpTarget)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the first instruction is reused, so jumps to the sequence still land on it
+    private static void fuse(Instruction first, int opcode, int... operands) {
+        first.opcode = opcode;
+        first.operands = operands;
+    }
+}
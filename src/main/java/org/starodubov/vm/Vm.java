@@ -1,47 +1,178 @@
 package org.starodubov.vm;
 
 import org.starodubov.vm.value.FunctionObj;
+import org.starodubov.vm.value.NativeFn;
+import org.starodubov.vm.value.NativeObj;
 import org.starodubov.vm.value.Value;
 import org.starodubov.vm.value.ValueTypes;
 
-import java.util.ArrayDeque;
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.function.BiFunction;
+import java.util.Arrays;
 
 import static org.starodubov.vm.OpCodes.*;
 
 public class Vm {
 
+    /*
+     * Stack slots are tagged. Numbers and booleans live unboxed in `prims`
+     * and `stack` holds one of the NUMBER_SLOT/BOOLEAN_SLOT tags for them.
+     * Strings, functions and natives are kept in `stack` as is. A slot pushed
+     * from a boxed number or boolean (constants, globals) keeps the original
+     * Value next to its unboxed copy, so it is returned back without allocation.
+     */
+    private static final Value NUMBER_SLOT = new Value(ValueTypes.NUMBER, null);
+
+    private static final Value BOOLEAN_SLOT = new Value(ValueTypes.BOOLEAN, null);
+
+    /*
+     * Pushes do not check bounds: a frame gets room for the max stack depth of
+     * its code when it is entered, see ensureStack.
+     */
+
     void push(Value v) {
-        if (sp >= STACK_LIMIT) {
-            throw new StackOverflowError();
+        switch (v.type()) {
+            case NUMBER -> prims[sp] = Value.asNumber(v);
+            case BOOLEAN -> prims[sp] = Value.asBoolean(v) ? 1 : 0;
+            default -> {
+            }
         }
-
         stack[sp] = v;
         sp++;
     }
 
+    void pushNumber(long n) {
+        stack[sp] = NUMBER_SLOT;
+        prims[sp] = n;
+        sp++;
+    }
+
+    void pushBool(boolean b) {
+        stack[sp] = BOOLEAN_SLOT;
+        prims[sp] = b ? 1 : 0;
+        sp++;
+    }
+
     Value pop() {
         if (sp <= 0) {
             throw new IllegalStateException("empty stack");
         }
 
         --sp;
-        return stack[sp];
+        return box(sp);
+    }
+
+    long popNumber() {
+        if (sp <= 0) {
+            throw new IllegalStateException("empty stack");
+        }
+
+        --sp;
+        if (stack[sp].type() != ValueTypes.NUMBER) {
+            throw new IllegalStateException("%s is not a number".formatted(box(sp)));
+        }
+        return prims[sp];
+    }
+
+    boolean popBool() {
+        if (sp <= 0) {
+            throw new IllegalStateException("empty stack");
+        }
+
+        --sp;
+        if (stack[sp].type() != ValueTypes.BOOLEAN) {
+            throw new IllegalStateException("%s is not a boolean".formatted(box(sp)));
+        }
+        return prims[sp] != 0;
     }
 
     public Value exec(String program) {
-        compile(program); //main fn
-        fn = compiler.getMainFn();
+        return run(compile(program));
+    }
+
+    /**
+     * Parses and compiles a script against the natives and host variables of
+     * this vm. The vm itself is not changed.
+     */
+    public CompiledProgram compile(String program) {
+        final var compiler = new Compiler(env.copy(), options);
+        try {
+            if (parser == null) {
+                parser = new Parser();
+            }
+            final long start = System.nanoTime();
+            final Ast ast = parser.parse("(begin %s )".formatted(program));
+            final long parsed = System.nanoTime();
+            compiler.compile(ast);
+            if (stats != null) {
+                stats.parseTimeNanos += parsed - start;
+                stats.compileTimeNanos += System.nanoTime() - parsed;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return new CompiledProgram(compiler.getMainFn(), compiler.getCodeObjs(), compiler.global);
+    }
+
+    /**
+     * Runs a program from the start with fresh globals, the state of earlier runs is dropped.
+     */
+    public Value run(CompiledProgram program) {
+        globals = program.link(env);
+        fn = program.main();
+        code = fn.co().bytecode().code();
         ip = 0;
         sp = 0;
         bp = sp;
-        compiler.disassemble();
+        frames = 0;
+        if (frameEvents != null) {
+            // left by a run that failed
+            Arrays.fill(frameEvents, null);
+        }
+        ensureStack(fn.co().bytecode().maxStack());
+        if (stats != null) {
+            stats.programLinked(program.codeObjs());
+            stats.stackDepth(fn.co().bytecode().maxStack());
+        }
         return exec();
     }
 
     public Value exec() {
+        final var event = new VmEvents.Execute();
+        event.begin();
+        final long counted = countedInstructions();
+        try {
+            if (profiler != null || (stats != null && options.tier() == ExecutionTier.INTERPRETER)) {
+                return runProfiled();
+            }
+            return options.tier() == ExecutionTier.CLOSURE ? runClosures() : run();
+        } finally {
+            output.flush();
+            event.end();
+            if (event.shouldCommit()) {
+                event.tier = jit != null ? "JIT" : options.tier().name();
+                event.instructions = countedInstructions() - counted;
+                event.commit();
+            }
+        }
+    }
+
+    // instructions are only counted by the instrumented loop, 0 when it does not run
+    private long countedInstructions() {
+        if (stats != null) {
+            return stats.instructions;
+        }
+        return profiler != null ? profiler.instructions() : 0;
+    }
+
+    private Value runClosures() {
+        nodes = ClosureCompiler.nodesOf(fn.co());
+        int pc = ip;
+        while ((pc = nodes[pc].exec(this)) >= 0) ;
+        return pop();
+    }
+
+    private Value run() {
         int execOp;
         for (; ; ) {
             execOp = readByte();
@@ -49,108 +180,573 @@ public class Vm {
                 case OP_HALT -> {
                     return pop();
                 }
-                case OP_CONST -> {
-                    final Value v = getConst();
-                    push(v);
-                }
-                case OP_ADD -> {
-                    final Value oper1 = pop(), oper2 = pop();
-                    if (oper1.type() == ValueTypes.STRING && oper2.type() == ValueTypes.STRING) {
-                        final String t = Value.asString(oper2) + Value.asString(oper1);
-                        push(Value.string(t));
-                    } else if (oper1.type() == ValueTypes.NUMBER && oper2.type() == ValueTypes.NUMBER) {
-                        final long t = Value.asNumber(oper1) + Value.asNumber(oper2);
-                        push(Value.number(t));
-                    } else {
-                        throw new IllegalStateException("cannot exec '%s' + '%s'".formatted(
-                                oper1, oper2
-                        ));
-                    }
-                }
-                case OP_SUB -> mathOp((a, b) -> b - a);
-                case OP_MUL -> mathOp((a, b) -> a * b);
-                case OP_DIV -> mathOp((a, b) -> b / a);
-                case OP_COMPARE -> {
-                    final int op = readByte();
-                    final Value oper1 = pop(), oper2 = pop();
-                    if (oper1.type() == ValueTypes.NUMBER && oper2.type() == ValueTypes.NUMBER) {
-                        final long n1 = Value.asNumber(oper1), n2 = Value.asNumber(oper2);
-                        push(compareOp(op, n1, n2));
-                    } else if (oper1.type() == ValueTypes.BOOLEAN && oper2.type() == ValueTypes.BOOLEAN) {
-                        final boolean n1 = Value.asBoolean(oper1), n2 = Value.asBoolean(oper2);
-                        push(compareOp(op, n1, n2));
-                    } else {
-                        throw new IllegalStateException("only numbers can be compared. %s, %s, op: %s"
-                                .formatted(oper1, oper2, op));
-                    }
-                }
-                case OP_JMP_IF_FALSE -> {
-                    final boolean cond = Value.asBoolean(pop());
-                    final int addr = readByte();
-                    if (!cond) {
-                        ip = addr;
-                    }
-                }
-                case OP_JMP -> ip = readByte();
-                case OP_GET_GLOBAL -> {
-                    final int globalIdx = readByte();
-                    push(global.get(globalIdx).value);
-                }
-                case OP_SET_GLOBAL -> {
-                    final int globalIdx = readByte();
-                    final Value v = peek();
-                    global.set(globalIdx, v);
-                }
-                case OP_POP -> pop();
-                case OP_GET_LOCAL -> {
-                    final int localIdx = readByte();
-                    if (localIdx < 0 || localIdx >= stack.length) {
-                        throw new ArrayIndexOutOfBoundsException("GET_LOCAL: local idx = %d".formatted(localIdx));
-                    }
-
-                    push(stack[bp + localIdx]);
-                }
+                case OP_CONST -> push(getConst());
+                case OP_ADD -> opAdd();
+                case OP_ADD_NUM -> opAddNum();
+                case OP_ADD_STR -> opAddStr();
+                case OP_SUB -> sub();
+                case OP_MUL -> mul();
+                case OP_DIV -> div();
+                case OP_COMPARE -> opCompare();
+                case OP_LT_NUM -> opLtNum();
+                case OP_GT_NUM -> opGtNum();
+                case OP_EQ_NUM -> opEqNum();
+                case OP_LE_NUM -> opLeNum();
+                case OP_GE_NUM -> opGeNum();
+                case OP_NE_NUM -> opNeNum();
+                case OP_CMP_JMP_IF_FALSE -> opCmpJmpIfFalse();
+                case OP_INC_LOCAL -> incLocal(readByte(), getConst());
+                case OP_INC_GLOBAL -> incGlobal(readByte(), getConst());
+                case OP_ADD_LOCALS -> addLocals(readByte(), readByte());
+                case OP_ADD_CONST -> addConst(getConst());
+                case OP_SUB_CONST -> subConst(getConst());
+                case OP_JMP_IF_FALSE -> opJmpIfFalse();
+                case OP_JMP -> opJmp();
+                case OP_GET_GLOBAL -> getGlobal(readByte());
+                case OP_SET_GLOBAL -> setGlobal(readByte());
+                case OP_POP -> popN(1);
+                case OP_GET_LOCAL -> getLocal(readByte());
+                case OP_SET_LOCAL -> setLocal(readByte());
+                case OP_SCOPE_EXIT -> scopeExit(readByte());
+                case OP_CALL -> opCall();
+                case OP_TAIL_CALL -> opTailCall();
+                case OP_RETURN -> ip = ret();
+                default -> throw new IllegalStateException("unknown instruction 0x%X".formatted(execOp));
+            }
+        }
+    }
 
-                case OP_SET_LOCAL -> {
-                    final int localIdx = readByte();
-                    if (localIdx < 0 || localIdx >= stack.length) {
-                        throw new ArrayIndexOutOfBoundsException("SET_LOCAL: local idx = %d".formatted(localIdx));
-                    }
-                    stack[localIdx] = peek();
-                }
-                case OP_SCOPE_EXIT -> {
-                    final int count = readByte();
-                    stack[sp - 1 - count] = peek();
-                    popN(count);
-                }
-                case OP_CALL -> {
-                    final int argsCount = readByte();
-                    final Value fnValue = peek(argsCount);
-                    if (ValueTypes.NATIVE == fnValue.type()) {
-                        Value.asNative(fnValue).fn().run();
-                        final var result = pop();
-                        popN(argsCount + 1);
-                        push(result);
-                    } else {
-                        final FunctionObj callee = Value.asFuntion(fnValue);
-                        callStack.push(new Frame(ip, bp, fn));
-                        fn = callee;
-                        bp = sp - argsCount - 1;
-                        // jump to the beginning of the function code
-                        ip = 0;
-                    }
-                }
-                case OP_RETURN -> {
-                    final Frame callerFrame = callStack.pop();
-                    ip = callerFrame.ra();
-                    bp = callerFrame.bp();
-                    fn = callerFrame.fn();
+    // same as run(), but every executed opcode goes to the profiler and the stats
+    private Value runProfiled() {
+        int execOp;
+        for (; ; ) {
+            execOp = readByte();
+            if (profiler != null) {
+                profiler.record(fn.co(), execOp);
+            }
+            if (stats != null) {
+                stats.instructions++;
+            }
+            switch (execOp) {
+                case OP_HALT -> {
+                    return pop();
                 }
+                case OP_CONST -> push(getConst());
+                case OP_ADD -> opAdd();
+                case OP_ADD_NUM -> opAddNum();
+                case OP_ADD_STR -> opAddStr();
+                case OP_SUB -> sub();
+                case OP_MUL -> mul();
+                case OP_DIV -> div();
+                case OP_COMPARE -> opCompare();
+                case OP_LT_NUM -> opLtNum();
+                case OP_GT_NUM -> opGtNum();
+                case OP_EQ_NUM -> opEqNum();
+                case OP_LE_NUM -> opLeNum();
+                case OP_GE_NUM -> opGeNum();
+                case OP_NE_NUM -> opNeNum();
+                case OP_CMP_JMP_IF_FALSE -> opCmpJmpIfFalse();
+                case OP_INC_LOCAL -> incLocal(readByte(), getConst());
+                case OP_INC_GLOBAL -> incGlobal(readByte(), getConst());
+                case OP_ADD_LOCALS -> addLocals(readByte(), readByte());
+                case OP_ADD_CONST -> addConst(getConst());
+                case OP_SUB_CONST -> subConst(getConst());
+                case OP_JMP_IF_FALSE -> opJmpIfFalse();
+                case OP_JMP -> opJmp();
+                case OP_GET_GLOBAL -> getGlobal(readByte());
+                case OP_SET_GLOBAL -> setGlobal(readByte());
+                case OP_POP -> popN(1);
+                case OP_GET_LOCAL -> getLocal(readByte());
+                case OP_SET_LOCAL -> setLocal(readByte());
+                case OP_SCOPE_EXIT -> scopeExit(readByte());
+                case OP_CALL -> opCall();
+                case OP_TAIL_CALL -> opTailCall();
+                case OP_RETURN -> ip = ret();
                 default -> throw new IllegalStateException("unknown instruction 0x%X".formatted(execOp));
             }
+        }
+    }
+
+    private void opAdd() {
+        if (numericOperands()) {
+            code[ip - 1] = OP_ADD_NUM;
+        } else if (stringOperands()) {
+            code[ip - 1] = OP_ADD_STR;
+        }
+        add();
+    }
+
+    private void opAddNum() {
+        if (numericOperands()) {
+            --sp;
+            prims[sp - 1] += prims[sp];
+            stack[sp - 1] = NUMBER_SLOT;
+        } else {
+            dequicken(OP_ADD, 1);
+        }
+    }
+
+    private void opAddStr() {
+        if (stringOperands()) {
+            addStrings();
+        } else {
+            dequicken(OP_ADD, 1);
+        }
+    }
+
+    private void opCompare() {
+        final int op = readByte();
+        if (numericOperands()) {
+            code[ip - 2] = quickenedCompare(op);
+        }
+        compare(op);
+    }
+
+    private void opLtNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] < prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
+        }
+    }
+
+    private void opGtNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] > prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
+        }
+    }
+
+    private void opEqNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] == prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
+        }
+    }
+
+    private void opLeNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] <= prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
+        }
+    }
+
+    private void opGeNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] >= prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
+        }
+    }
 
+    private void opNeNum() {
+        if (numericOperands()) {
+            ip++;
+            setCompareResult(prims[sp - 2] != prims[sp - 1]);
+        } else {
+            dequicken(OP_COMPARE, 1);
         }
     }
+
+    private void opCmpJmpIfFalse() {
+        final int op = readByte();
+        final int addr = readByte();
+        if (!compareAndPop(op)) {
+            ip = addr;
+        }
+    }
+
+    private void opJmpIfFalse() {
+        final boolean cond = popBool();
+        final int addr = readByte();
+        if (!cond) {
+            ip = addr;
+        }
+    }
+
+    private void opJmp() {
+        final int addr = readByte();
+        if (jit != null && addr < ip) {
+            jit.backEdge(fn.co());
+        }
+        ip = addr;
+    }
+
+    private void opCall() {
+        final int argsCount = readByte();
+        ip = call(argsCount, ip);
+    }
+
+    private void opTailCall() {
+        final int argsCount = readByte();
+        ip = tailCall(argsCount, ip);
+    }
+
+    /*
+     * Operations shared by the bytecode loop and the closure tier.
+     * Operands come already decoded.
+     */
+
+    void sub() {
+        final long n1 = popNumber(), n2 = popNumber();
+        pushNumber(n2 - n1);
+    }
+
+    void mul() {
+        final long n1 = popNumber(), n2 = popNumber();
+        pushNumber(n2 * n1);
+    }
+
+    void div() {
+        final long n1 = popNumber(), n2 = popNumber();
+        pushNumber(n2 / n1);
+    }
+
+    // generic ADD of the two top values
+    void add() {
+        if (numericOperands()) {
+            final long n1 = popNumber(), n2 = popNumber();
+            pushNumber(n2 + n1);
+        } else if (stringOperands()) {
+            addStrings();
+        } else {
+            throw new IllegalStateException("cannot exec '%s' + '%s'".formatted(peek(), peek(1)));
+        }
+    }
+
+    // generic COMPARE of the two top values
+    void compare(int op) {
+        pushBool(compareAndPop(op));
+    }
+
+    boolean compareAndPop(int op) {
+        if (numericOperands()) {
+            sp -= 2;
+            return compareOp(op, prims[sp + 1], prims[sp]);
+        } else if (stack[sp - 1].type() == ValueTypes.BOOLEAN && stack[sp - 2].type() == ValueTypes.BOOLEAN) {
+            sp -= 2;
+            return compareOp(op, prims[sp + 1] != 0, prims[sp] != 0);
+        } else {
+            throw new IllegalStateException("only numbers can be compared. %s, %s, op: %s"
+                    .formatted(peek(), peek(1), op));
+        }
+    }
+
+    void incLocal(int localIdx, Value c) {
+        final int slot = bp + localIdx;
+        if (stack[slot].type() == ValueTypes.NUMBER && c.type() == ValueTypes.NUMBER) {
+            prims[slot] += Value.asNumber(c);
+            stack[slot] = NUMBER_SLOT;
+            pushSlot(slot);
+        } else {
+            stack[slot] = addValues(box(slot), c);
+            pushSlot(slot);
+        }
+    }
+
+    void incGlobal(int globalIdx, Value c) {
+        final Value global = globals[globalIdx];
+        if (global.type() == ValueTypes.NUMBER && c.type() == ValueTypes.NUMBER) {
+            push(global);
+            prims[sp - 1] += Value.asNumber(c);
+            stack[sp - 1] = NUMBER_SLOT;
+        } else {
+            push(addValues(global, c));
+        }
+        globals[globalIdx] = peek();
+    }
+
+    void addLocals(int localIdx1, int localIdx2) {
+        final int slot1 = bp + localIdx1, slot2 = bp + localIdx2;
+        if (stack[slot1].type() == ValueTypes.NUMBER && stack[slot2].type() == ValueTypes.NUMBER) {
+            pushNumber(prims[slot1] + prims[slot2]);
+        } else {
+            push(addValues(box(slot1), box(slot2)));
+        }
+    }
+
+    void addConst(Value c) {
+        if (stack[sp - 1].type() == ValueTypes.NUMBER && c.type() == ValueTypes.NUMBER) {
+            prims[sp - 1] += Value.asNumber(c);
+            stack[sp - 1] = NUMBER_SLOT;
+        } else {
+            stack[sp - 1] = addValues(box(sp - 1), c);
+        }
+    }
+
+    // generic + of the fused instructions, they get room for their result only so the operands are not pushed
+    private Value addValues(Value left, Value right) {
+        if (left.type() == ValueTypes.STRING && right.type() == ValueTypes.STRING) {
+            if (stats != null) {
+                stats.valuesAllocated++;
+            }
+            return Value.string(Value.asString(left) + Value.asString(right));
+        }
+        throw new IllegalStateException("cannot exec '%s' + '%s'".formatted(right, left));
+    }
+
+    void subConst(Value c) {
+        final long n = popNumber();
+        pushNumber(n - Value.asNumber(c));
+    }
+
+    void getGlobal(int globalIdx) {
+        push(globals[globalIdx]);
+    }
+
+    void setGlobal(int globalIdx) {
+        globals[globalIdx] = peek();
+    }
+
+    void getLocal(int localIdx) {
+        if (localIdx < 0 || bp + localIdx >= sp) {
+            throw new ArrayIndexOutOfBoundsException("GET_LOCAL: local idx = %d".formatted(localIdx));
+        }
+
+        pushSlot(bp + localIdx);
+    }
+
+    void setLocal(int localIdx) {
+        if (localIdx < 0 || bp + localIdx >= sp) {
+            throw new ArrayIndexOutOfBoundsException("SET_LOCAL: local idx = %d".formatted(localIdx));
+        }
+        copySlot(sp - 1, bp + localIdx);
+    }
+
+    void scopeExit(int count) {
+        copySlot(sp - 1, sp - 1 - count);
+        popN(count);
+    }
+
+    /**
+     * Calls the function below the arguments on the stack.
+     *
+     * @return address to continue at: 0 of the callee for user functions,
+     * returnAddress for natives
+     */
+    int call(int argsCount, int returnAddress) {
+        final Value fnValue = stack[sp - 1 - argsCount];
+        if (ValueTypes.NATIVE == fnValue.type()) {
+            callNative(Value.asNative(fnValue), argsCount);
+            return returnAddress;
+        } else if (ValueTypes.FUNCTION == fnValue.type()) {
+            final FunctionObj callee = Value.asFuntion(fnValue);
+            if (stats != null) {
+                stats.called(callee.co().name());
+            }
+            if (jit != null && callCompiled(callee, argsCount)) {
+                return returnAddress;
+            }
+            if (VmEvents.FUNCTION_CALL.isEnabled()) {
+                beginCallEvent(callee);
+            }
+            pushFrame(returnAddress);
+            fn = callee;
+            code = callee.co().bytecode().code();
+            bp = sp - argsCount - 1;
+            ensureStack(bp + callee.co().bytecode().maxStack());
+            if (stats != null) {
+                stats.stackDepth(bp + callee.co().bytecode().maxStack());
+            }
+            // jump to the beginning of the function code
+            return 0;
+        } else {
+            throw new IllegalStateException("%s is not a function".formatted(peek(argsCount)));
+        }
+    }
+
+    // the result replaces the native and its arguments
+    private void callNative(NativeObj nat, int argsCount) {
+        if (stats != null) {
+            stats.called(nat.name());
+        }
+        if (VmEvents.NATIVE_CALL.isEnabled()) {
+            final var event = new VmEvents.NativeCall();
+            event.begin();
+            invokeNative(nat, argsCount);
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = nat.name();
+                event.arity = argsCount;
+                event.commit();
+            }
+        } else {
+            invokeNative(nat, argsCount);
+        }
+    }
+
+    private void invokeNative(NativeObj nat, int argsCount) {
+        final int base = sp - argsCount;
+        final Value result = switch (nat.fn()) {
+            case NativeFn.Fn0 f when argsCount == 0 -> f.call();
+            case NativeFn.Fn1 f when argsCount == 1 -> f.call(box(base));
+            case NativeFn.Fn2 f when argsCount == 2 -> f.call(box(base), box(base + 1));
+            case NativeFn.FnN f when argsCount == nat.arity() -> {
+                final Value[] args = new Value[argsCount];
+                for (int i = 0; i < argsCount; i++) {
+                    args[i] = box(base + i);
+                }
+                yield f.call(args);
+            }
+            case NativeFn.StackFn f -> {
+                ensureStack(sp + NATIVE_STACK_RESERVE);
+                f.body().run();
+                yield box(sp - 1);
+            }
+            default -> throw new IllegalStateException("native '%s' takes %d arguments, got %d"
+                    .formatted(nat.name(), nat.arity(), argsCount));
+        };
+        sp = base - 1;
+        push(result);
+    }
+
+    /**
+     * Call in tail position: the callee and its arguments replace the frame of
+     * the current function, the callee returns straight to our caller.
+     * Natives are called as usual, the following SCOPE_EXIT and RETURN finish the frame.
+     *
+     * @return address to continue at, as in {@link #call}
+     */
+    int tailCall(int argsCount, int returnAddress) {
+        final int calleeSlot = sp - 1 - argsCount;
+        final Value fnValue = stack[calleeSlot];
+        if (ValueTypes.FUNCTION != fnValue.type()) {
+            return call(argsCount, returnAddress);
+        }
+        final FunctionObj callee = Value.asFuntion(fnValue);
+        if (stats != null) {
+            stats.called(callee.co().name());
+        }
+        if (jit != null && callCompiled(callee, argsCount)) {
+            return returnAddress;
+        }
+        for (int i = 0; i <= argsCount; i++) {
+            copySlot(calleeSlot + i, bp + i);
+        }
+        sp = bp + argsCount + 1;
+        fn = callee;
+        code = callee.co().bytecode().code();
+        ensureStack(bp + callee.co().bytecode().maxStack());
+        if (stats != null) {
+            stats.stackDepth(bp + callee.co().bytecode().maxStack());
+        }
+        return 0;
+    }
+
+    // makes the stack hold at least `slots` slots, growing it up to the configured max
+    private void ensureStack(int slots) {
+        if (slots > stack.length) {
+            growStack(slots);
+        }
+    }
+
+    private void growStack(int slots) {
+        if (slots > options.maxStackSize()) {
+            throw new StackOverflowError();
+        }
+        final int capacity = Math.min(options.maxStackSize(), Math.max(slots, stack.length * 2));
+        stack = Arrays.copyOf(stack, capacity);
+        prims = Arrays.copyOf(prims, capacity);
+    }
+
+    // runs the JIT compiled code of the callee if there is one for these arguments
+    private boolean callCompiled(FunctionObj callee, int argsCount) {
+        final int base = sp - 1 - argsCount;
+        final JitCompiler.Compiled compiled = jit.compiledFor(callee.co(), stack, base + 1, argsCount);
+        if (compiled == null) {
+            return false;
+        }
+        final long result;
+        try {
+            result = compiled.code().call(prims, base);
+        } catch (StackOverflowError e) {
+            // recursion deeper than the thread stack, compiled code has no side effects so the call
+            // is interpreted from the start on the vm stack
+            jit.overflowed(callee.co());
+            return false;
+        }
+        sp = base;
+        if (compiled.result() == ValueTypes.BOOLEAN) {
+            pushBool(result != 0);
+        } else {
+            pushNumber(result);
+        }
+        return true;
+    }
+
+    // returns to the caller frame, gives the return address
+    int ret() {
+        if (frames == 0) {
+            throw new IllegalStateException("call stack is empty");
+        }
+        final int frame = --frames;
+        if (frameEvents != null && frameEvents[frame] != null) {
+            endCallEvent(frame);
+        }
+        bp = frameBp[frame];
+        fn = frameFn[frame];
+        // drop the reference, so a finished function can be collected
+        frameFn[frame] = null;
+        code = fn.co().bytecode().code();
+        return frameRa[frame];
+    }
+
+    // saves the caller registers
+    private void pushFrame(int returnAddress) {
+        if (frames == frameRa.length) {
+            growFrames();
+        }
+        frameRa[frames] = returnAddress;
+        frameBp[frames] = bp;
+        frameFn[frames] = fn;
+        frames++;
+    }
+
+    private void growFrames() {
+        final int capacity = frameRa.length * 2;
+        frameRa = Arrays.copyOf(frameRa, capacity);
+        frameBp = Arrays.copyOf(frameBp, capacity);
+        frameFn = Arrays.copyOf(frameFn, capacity);
+        if (frameEvents != null) {
+            frameEvents = Arrays.copyOf(frameEvents, capacity);
+        }
+    }
+
+    // called before the frame of the callee is pushed, the event ends when the frame is popped,
+    // so it also covers the functions the callee tail calls
+    private void beginCallEvent(FunctionObj callee) {
+        if (frameEvents == null) {
+            frameEvents = new VmEvents.FunctionCall[frameRa.length];
+        }
+        if (frames >= frameEvents.length) {
+            // the frame arrays grow when the frame is pushed
+            frameEvents = Arrays.copyOf(frameEvents, frameEvents.length * 2);
+        }
+        final var event = new VmEvents.FunctionCall();
+        event.begin();
+        event.function = callee.co().name();
+        event.arity = callee.co().arity();
+        event.bytecodeSize = callee.co().bytecode().size();
+        frameEvents[frames] = event;
+    }
+
+    private void endCallEvent(int frame) {
+        final VmEvents.FunctionCall event = frameEvents[frame];
+        frameEvents[frame] = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
     void popN(int count) {
         if (sp - count < 0) {
             throw new ArrayIndexOutOfBoundsException("popN: sp - count == %d".formatted(sp -count));
@@ -162,89 +758,199 @@ public class Vm {
         if (sp <= 0) {
             throw new ArrayIndexOutOfBoundsException("stack is empty");
         }
-        return stack[sp - 1];
+        return box(sp - 1);
     }
 
     Value peek(int offset) {
         if (sp <= 0) {
             throw new ArrayIndexOutOfBoundsException("stack. sp=%s,offset=%s".formatted(sp, offset));
         }
-        return stack[sp - 1 - offset];
+        return box(sp - 1 - offset);
+    }
+
+    boolean numericOperands() {
+        return stack[sp - 1].type() == ValueTypes.NUMBER && stack[sp - 2].type() == ValueTypes.NUMBER;
+    }
+
+    private boolean stringOperands() {
+        return stack[sp - 1].type() == ValueTypes.STRING && stack[sp - 2].type() == ValueTypes.STRING;
+    }
+
+    // unchecked read of an unboxed number, offset 0 is the top
+    long peekNumber(int offset) {
+        return prims[sp - 1 - offset];
+    }
+
+    // replaces the two compared operands with the result
+    void setCompareResult(boolean result) {
+        --sp;
+        stack[sp - 1] = BOOLEAN_SLOT;
+        prims[sp - 1] = result ? 1 : 0;
+    }
+
+    private void addStrings() {
+        final Value oper1 = pop(), oper2 = pop();
+        final String t = Value.asString(oper2) + Value.asString(oper1);
+        if (stats != null) {
+            stats.valuesAllocated++;
+        }
+        push(Value.string(t));
     }
 
-    Value compareOp(int op, boolean n1, boolean n2) {
+    /**
+     * A quickened instruction whose type guard failed is rewritten back to its
+     * generic form and re-dispatched. It can be quickened again later.
+     * The quickened compares keep the compare code operand for that.
+     */
+    private void dequicken(int genericOp, int length) {
+        ip -= length;
+        code[ip] = genericOp;
+    }
+
+    static int quickenedCompare(int compareCode) {
+        return switch (compareCode) {
+            case Compiler.CMP_LESS_CODE -> OP_LT_NUM;
+            case Compiler.CMP_GREAT_CODE -> OP_GT_NUM;
+            case Compiler.CMP_EQ_CODE -> OP_EQ_NUM;
+            case Compiler.CMP_EQ_OR_LESS_CODE -> OP_LE_NUM;
+            case Compiler.CMP_GREAT_OR_EQ_CODE -> OP_GE_NUM;
+            case Compiler.CMP_NOT_EQ_CODE -> OP_NE_NUM;
+            default -> throw new IllegalStateException("Unexpected compare value for nums: " + compareCode);
+        };
+    }
+
+    /**
+     * Boxes an unboxed slot. Only called where a value leaves the stack:
+     * globals, natives and the program result.
+     */
+    private Value box(int slot) {
+        final Value v = stack[slot];
+        if (v == NUMBER_SLOT) {
+            if (stats != null) {
+                stats.valuesAllocated++;
+            }
+            return Value.number(prims[slot]);
+        }
+        if (v == BOOLEAN_SLOT) {
+            return Value.bool(prims[slot] != 0);
+        }
+        return v;
+    }
+
+    private void pushSlot(int slot) {
+        copySlot(slot, sp);
+        sp++;
+    }
+
+    private void copySlot(int from, int to) {
+        stack[to] = stack[from];
+        prims[to] = prims[from];
+    }
+
+    boolean compareOp(int op, boolean n1, boolean n2) {
         return switch (op) {
-            case Compiler.CMP_EQ_CODE -> Value.bool(n1 == n2);
-            case Compiler.CMP_NOT_EQ_CODE -> Value.bool(n1 != n2);
+            case Compiler.CMP_EQ_CODE -> n1 == n2;
+            case Compiler.CMP_NOT_EQ_CODE -> n1 != n2;
             default -> throw new IllegalStateException("Unexpected compare value for booleans: " + op);
         };
     }
 
-    Value compareOp(int op, long n1, long n2) {
+    boolean compareOp(int op, long n1, long n2) {
         return switch (op) {
-            case Compiler.CMP_LESS_CODE -> Value.bool(n1 > n2);
-            case Compiler.CMP_GREAT_CODE -> Value.bool(n1 < n2);
-            case Compiler.CMP_EQ_CODE -> Value.bool(n1 == n2);
-            case Compiler.CMP_GREAT_OR_EQ_CODE -> Value.bool(n1 <= n2);
-            case Compiler.CMP_EQ_OR_LESS_CODE -> Value.bool(n1 >= n2);
-            case Compiler.CMP_NOT_EQ_CODE -> Value.bool(n1 != n2);
+            case Compiler.CMP_LESS_CODE -> n1 > n2;
+            case Compiler.CMP_GREAT_CODE -> n1 < n2;
+            case Compiler.CMP_EQ_CODE -> n1 == n2;
+            case Compiler.CMP_GREAT_OR_EQ_CODE -> n1 <= n2;
+            case Compiler.CMP_EQ_OR_LESS_CODE -> n1 >= n2;
+            case Compiler.CMP_NOT_EQ_CODE -> n1 != n2;
             default -> throw new IllegalStateException("Unexpected compare value for nums: " + op);
         };
     }
 
-    void compile(String program) {
-        try {
-            final var ast = (Exp) parser.parse("(begin %s )".formatted(program));
-            compiler.compile(ast);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    int readByte() {
+        return code[ip++];
     }
 
-    void mathOp(final BiFunction<Long, Long, Long> mathFun) {
-        final long oper1 = Value.asNumber(pop()), oper2 = Value.asNumber(pop());
-        final long result = mathFun.apply(oper1, oper2);
-        push(Value.number(result));
+    Value getConst() {
+        return fn.co().constants().get(readByte());
     }
 
-    int readByte() {
-        return fn.co().bytecode().get(ip++);
+    /**
+     * Installs an opcode profiler used by the following runs, null turns profiling off.
+     */
+    public void setProfiler(OpcodeProfiler profiler) {
+        this.profiler = profiler;
     }
 
-    Value getConst() {
-        return fn.co().constants().get(readByte());
+    /**
+     * Installs stats updated by the following compiles and runs, null turns them off.
+     */
+    public void setStats(VmStats stats) {
+        this.stats = stats;
+    }
+
+    public VmStats stats() {
+        return stats;
+    }
+
+    public OutputSink output() {
+        return output;
+    }
+
+    // sink of println and print, the current one is flushed first
+    public void setOutput(OutputSink output) {
+        this.output.flush();
+        this.output = output;
+    }
+
+    Global env() {
+        return env;
+    }
+
+    VmOptions options() {
+        return options;
     }
 
     void setGlobalVars(GlobalVar... globalVars) {
-        global.addConst(globalVars);
+        env.addConst(globalVars);
     }
 
     void addNativeFunction(final String name, Runnable fn, int arity) {
-        global.addNativeFunction(name, fn, arity);
+        env.addNativeFunction(name, fn, arity);
     }
 
-    public Vm() {
-        parser = new Parser();
-        global = new Global(new ArrayList<>());
-        compiler = new Compiler(global, new Disassembler(global));
-        stack = new Value[STACK_LIMIT];
+    void addNative(final String name, int arity, NativeFn fn) {
+        env.addNative(name, arity, fn);
+    }
 
-        addNativeFunction("println", () -> {
-            final Value x = peek();
-            System.out.println(x.obj());
-            push(Value.VOID);
-        }, 1);
+    void addNatives(MethodHandles.Lookup lookup, Class<?> owner) {
+        env.addNatives(lookup, owner);
+    }
 
-        addNativeFunction("square", () -> {
-            final long x = Value.asNumber(peek());
-            push(Value.number(x * x));
-        }, 1);
+    public Vm() {
+        this(VmOptions.defaults());
+    }
 
-        addNativeFunction("print", () -> {
-            final Value x = peek();
-            System.out.print(x.obj());
-            push(Value.VOID);
-        }, 1);
+    public Vm(VmOptions options) {
+        this.options = options;
+        jit = options.jitThreshold() > 0 ? new JitCompiler(options.jitThreshold()) : null;
+        env = new Global(new ArrayList<>());
+        globals = new Value[0];
+        stack = new Value[options.stackSize()];
+        prims = new long[options.stackSize()];
+        frameRa = new int[options.frameCapacity()];
+        frameBp = new int[options.frameCapacity()];
+        frameFn = new FunctionObj[options.frameCapacity()];
+
+        addNative("println", 1, (NativeFn.Fn1) x -> {
+            output.println(x.obj());
+            return Value.VOID;
+        });
+        addNative("print", 1, (NativeFn.Fn1) x -> {
+            output.print(x.obj());
+            return Value.VOID;
+        });
+        env.addNatives(MethodHandles.lookup(), Builtins.class);
     }
 
     // stack pointer
@@ -258,15 +964,55 @@ public class Vm {
 
     FunctionObj fn;
 
-    static final int STACK_LIMIT = 512;
+    // frozen bytecode of fn
+    int[] code;
+
+    // nodes of fn, when running in the closure tier
+    ClosureCompiler.Node[] nodes;
+
+    // slots a native function may push
+    static final int NATIVE_STACK_RESERVE = 8;
+
+    final private VmOptions options;
+
+    // null when the JIT is off
+    final JitCompiler jit;
+
+    private OutputSink output = OutputSink.stdout();
+
+    // created on the first compile, a program loaded from the bytecode cache does not need it
+    private Parser parser;
+
+    // boxed values and slot tags
+    private Value[] stack;
+
+    // unboxed numbers and booleans, parallel to stack
+    private long[] prims;
+
+    // natives and variables registered by the host, visible to every program
+    final private Global env;
+
+    // globals of the running program, linked by CompiledProgram.link
+    private Value[] globals;
+
+    /*
+     * Call frames of the callers, as parallel arrays indexed by depth:
+     * return address, base pointer and function.
+     */
+    private int[] frameRa;
+
+    private int[] frameBp;
 
-    final private Parser parser;
+    private FunctionObj[] frameFn;
 
-    final private Compiler compiler;
+    // number of saved frames
+    private int frames;
 
-    final private Value[] stack;
+    // Flight Recorder events of the calls in progress, by frame, null until one is recorded
+    private VmEvents.FunctionCall[] frameEvents;
 
-    final private Global global;
+    private OpcodeProfiler profiler;
 
-    final private Deque<Frame> callStack = new ArrayDeque<>();
+    // null when not collected
+    private VmStats stats;
 }
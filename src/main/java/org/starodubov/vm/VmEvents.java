@@ -0,0 +1,108 @@
+package org.starodubov.vm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events of the vm. An event object is only made when a
+ * recording has its type enabled, with no recording the checks are a read of
+ * a flag the JIT folds away.
+ */
+final class VmEvents {
+
+    private static final String CATEGORY = "Starodubov VM";
+
+    // for checking whether a type is enabled without making an event
+    static final FunctionCall FUNCTION_CALL = new FunctionCall();
+
+    static final NativeCall NATIVE_CALL = new NativeCall();
+
+    private VmEvents() {
+    }
+
+    @Name("org.starodubov.vm.Parse")
+    @Label("Parse")
+    @Category(CATEGORY)
+    @Description("Parsing of a script")
+    static final class Parse extends Event {
+
+        @Label("Source Length")
+        @Description("Characters of the script")
+        int sourceLength;
+
+        @Label("Syntax Tree Nodes")
+        int nodes;
+    }
+
+    @Name("org.starodubov.vm.Compile")
+    @Label("Compile")
+    @Category(CATEGORY)
+    @Description("Compilation of a syntax tree to bytecode, with the optimization passes")
+    static final class Compile extends Event {
+
+        @Label("Code Objects")
+        int codeObjects;
+
+        @Label("Bytecode Size")
+        @Description("Ints of code of all code objects")
+        int bytecodeSize;
+
+        @Label("Constants")
+        int constants;
+
+        @Label("Optimization")
+        String optimization;
+    }
+
+    @Name("org.starodubov.vm.Execute")
+    @Label("Execute")
+    @Category(CATEGORY)
+    @Description("Run of a program")
+    static final class Execute extends Event {
+
+        @Label("Tier")
+        String tier;
+
+        @Label("Instructions")
+        @Description("Instructions counted by the instrumented interpreter loop, 0 without stats or a profiler")
+        long instructions;
+    }
+
+    @Name("org.starodubov.vm.FunctionCall")
+    @Label("Function Call")
+    @Category(CATEGORY)
+    @Description("Interpreted call of a user function that took longer than the threshold")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class FunctionCall extends Event {
+
+        @Label("Function")
+        String function;
+
+        @Label("Arity")
+        int arity;
+
+        @Label("Bytecode Size")
+        int bytecodeSize;
+    }
+
+    @Name("org.starodubov.vm.NativeCall")
+    @Label("Native Call")
+    @Category(CATEGORY)
+    @Description("Call of a native function that took longer than the threshold")
+    @Threshold("100 us")
+    @StackTrace(false)
+    static final class NativeCall extends Event {
+
+        @Label("Function")
+        String function;
+
+        @Label("Arity")
+        int arity;
+    }
+}
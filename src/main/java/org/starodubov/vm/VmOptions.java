@@ -0,0 +1,91 @@
+package org.starodubov.vm;
+
+/**
+ * @param stackSize     initial number of stack slots
+ * @param maxStackSize  the stack grows up to that many slots, deeper calls throw StackOverflowError
+ * @param jitThreshold  calls and loop iterations after which a function is
+ *                      compiled to JVM bytecode, 0 turns the JIT off
+ * @param frameCapacity initial capacity of the call frame stack, it grows on deeper calls
+ * @param shareStrings  string literals equal across functions of a program share one constant
+ * @param optimization  optimizations the compiler runs over the generated code
+ * @param inlineBudget  functions with code up to that many ints are inlined
+ *                      at their calls, 0 turns inlining off
+ */
+public record VmOptions(
+        ExecutionTier tier,
+        int stackSize,
+        int maxStackSize,
+        int jitThreshold,
+        int frameCapacity,
+        boolean shareStrings,
+        OptimizationLevel optimization,
+        int inlineBudget
+) {
+
+    public static final int DEFAULT_STACK_SIZE = 512;
+
+    public static final int DEFAULT_MAX_STACK_SIZE = 1 << 20;
+
+    public static final int DEFAULT_JIT_THRESHOLD = 1000;
+
+    public static final int DEFAULT_FRAME_CAPACITY = 64;
+
+    public static final int DEFAULT_INLINE_BUDGET = 40;
+
+    public VmOptions {
+        if (stackSize < 1 || maxStackSize < stackSize) {
+            throw new IllegalArgumentException("stack sizes must be 0 < stackSize <= maxStackSize: %d, %d"
+                    .formatted(stackSize, maxStackSize));
+        }
+        if (frameCapacity < 1) {
+            throw new IllegalArgumentException("frameCapacity must be positive: " + frameCapacity);
+        }
+        if (inlineBudget < 0) {
+            throw new IllegalArgumentException("inlineBudget must not be negative: " + inlineBudget);
+        }
+    }
+
+    public static VmOptions defaults() {
+        return new VmOptions(ExecutionTier.INTERPRETER, DEFAULT_STACK_SIZE, DEFAULT_MAX_STACK_SIZE,
+                0, DEFAULT_FRAME_CAPACITY, false, OptimizationLevel.O2, DEFAULT_INLINE_BUDGET);
+    }
+
+    public VmOptions withTier(ExecutionTier tier) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withStackSize(int stackSize, int maxStackSize) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withJitThreshold(int jitThreshold) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withJit() {
+        return withJitThreshold(DEFAULT_JIT_THRESHOLD);
+    }
+
+    public VmOptions withFrameCapacity(int frameCapacity) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withSharedStrings(boolean shareStrings) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withOptimization(OptimizationLevel optimization) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+
+    public VmOptions withInlineBudget(int inlineBudget) {
+        return new VmOptions(tier, stackSize, maxStackSize, jitThreshold, frameCapacity, shareStrings, optimization,
+                inlineBudget);
+    }
+}
@@ -0,0 +1,177 @@
+package org.starodubov.vm;
+
+import org.starodubov.vm.value.CodeObj;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a vm did since the stats were installed with {@link Vm#setStats} or
+ * reset. Counters are plain fields written by the thread running the vm and
+ * read on demand, a snapshot taken from another thread may be slightly behind.
+ * <p>
+ * Instructions are counted by the interpreter loop, functions run by the
+ * closure tier or the JIT are not. Values allocated are the boxes the vm makes
+ * for numbers it hands out and the strings made by {@code +}. The stack depth
+ * is the deepest frame the vm made room for, in slots.
+ */
+public final class VmStats implements VmStatsMXBean {
+
+    public record Snapshot(
+            long instructions,
+            Map<String, Long> calls,
+            int maxStackDepth,
+            long parseTimeNanos,
+            long compileTimeNanos,
+            Map<String, Integer> constantsPerCodeObj,
+            long valuesAllocated
+    ) {
+    }
+
+    long instructions;
+
+    int maxStackDepth;
+
+    long parseTimeNanos;
+
+    long compileTimeNanos;
+
+    long valuesAllocated;
+
+    // function or native name -> {calls}
+    private final Map<String, long[]> calls = new ConcurrentHashMap<>();
+
+    // code objects of the last program run
+    private volatile Map<String, Integer> constants = Map.of();
+
+    private ObjectName registeredName;
+
+    void called(String name) {
+        long[] count = calls.get(name);
+        if (count == null) {
+            count = calls.computeIfAbsent(name, n -> new long[1]);
+        }
+        count[0]++;
+    }
+
+    void stackDepth(int slots) {
+        if (slots > maxStackDepth) {
+            maxStackDepth = slots;
+        }
+    }
+
+    // code objects with the same name are told apart by a #n suffix
+    void programLinked(Iterable<CodeObj> codeObjs) {
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        for (var co : codeObjs) {
+            String name = co.name();
+            for (int n = 2; counts.containsKey(name); n++) {
+                name = co.name() + "#" + n;
+            }
+            counts.put(name, co.constants().size());
+        }
+        constants = Collections.unmodifiableMap(counts);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(instructions, getCalls(), maxStackDepth, parseTimeNanos, compileTimeNanos,
+                constants, valuesAllocated);
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions;
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        final Map<String, Long> out = new TreeMap<>();
+        calls.forEach((name, count) -> out.put(name, count[0]));
+        return Collections.unmodifiableMap(out);
+    }
+
+    @Override
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    @Override
+    public long getParseTimeNanos() {
+        return parseTimeNanos;
+    }
+
+    @Override
+    public long getCompileTimeNanos() {
+        return compileTimeNanos;
+    }
+
+    @Override
+    public Map<String, Integer> getConstantsPerCodeObj() {
+        return constants;
+    }
+
+    @Override
+    public long getValuesAllocated() {
+        return valuesAllocated;
+    }
+
+    @Override
+    public void reset() {
+        instructions = 0;
+        maxStackDepth = 0;
+        parseTimeNanos = 0;
+        compileTimeNanos = 0;
+        valuesAllocated = 0;
+        calls.clear();
+        constants = Map.of();
+    }
+
+    /**
+     * Registers the stats in the platform MBean server as
+     * {@code org.starodubov.vm:type=VmStats,name=<name>}.
+     */
+    public synchronized void register(String name) {
+        if (registeredName != null) {
+            throw new IllegalStateException("already registered as " + registeredName);
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final var objectName = new ObjectName("org.starodubov.vm", new Hashtable<>(
+                    Map.of("type", "VmStats", "name", ObjectName.quote(name))));
+            server.registerMBean(this, objectName);
+            registeredName = objectName;
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("vm stats named '%s' are already registered".formatted(name), e);
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (InstanceNotFoundException e) {
+            // unregistered by someone else
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+        registeredName = null;
+    }
+
+    public synchronized ObjectName objectName() {
+        return registeredName;
+    }
+}
@@ -0,0 +1,25 @@
+package org.starodubov.vm;
+
+import java.util.Map;
+
+/**
+ * Attributes of {@link VmStats} as seen over JMX.
+ */
+public interface VmStatsMXBean {
+
+    long getInstructions();
+
+    Map<String, Long> getCalls();
+
+    int getMaxStackDepth();
+
+    long getParseTimeNanos();
+
+    long getCompileTimeNanos();
+
+    Map<String, Integer> getConstantsPerCodeObj();
+
+    long getValuesAllocated();
+
+    void reset();
+}
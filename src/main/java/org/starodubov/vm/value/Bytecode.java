@@ -0,0 +1,109 @@
+package org.starodubov.vm.value;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Growable instruction buffer of a {@link CodeObj}.
+ * <p>
+ * The compiler appends opcodes and operands while generating code, then the
+ * buffer is frozen into a trimmed {@code int[]} which the interpreter reads
+ * directly. Every opcode and every operand takes exactly one slot, so
+ * constant, global, local and jump operands are never limited to a byte.
+ */
+public final class Bytecode {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] code;
+
+    private int size;
+
+    private boolean frozen;
+
+    // max number of stack slots of a frame running this code, computed by the compiler
+    private int maxStack;
+
+    public Bytecode() {
+        code = new int[INITIAL_CAPACITY];
+    }
+
+    public void add(int value) {
+        checkNotFrozen();
+        if (size == code.length) {
+            code = Arrays.copyOf(code, code.length << 1);
+        }
+        code[size++] = value;
+    }
+
+    public void set(int offset, int value) {
+        checkNotFrozen();
+        Objects.checkIndex(offset, size);
+        code[offset] = value;
+    }
+
+    /**
+     * Replaces the whole content, used by the passes that rewrite generated code.
+     */
+    public void replace(int[] newCode) {
+        checkNotFrozen();
+        code = newCode;
+        size = newCode.length;
+    }
+
+    public int get(int offset) {
+        Objects.checkIndex(offset, size);
+        return code[offset];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Trims the buffer to its size. No more instructions can be emitted after that.
+     */
+    public void freeze() {
+        if (frozen) {
+            return;
+        }
+        if (code.length != size) {
+            code = Arrays.copyOf(code, size);
+        }
+        frozen = true;
+    }
+
+    public int maxStack() {
+        return maxStack;
+    }
+
+    public void setMaxStack(int maxStack) {
+        checkNotFrozen();
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Raw instruction array, read by the interpreter without bounds or type checks.
+     */
+    public int[] code() {
+        return code;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("bytecode is frozen");
+        }
+    }
+
+    @Override
+    public String toString() {
+        final var sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("0x%X".formatted(code[i]));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -5,54 +5,67 @@ import org.starodubov.vm.utils.Counter;
 import org.starodubov.vm.utils.DebugArrayList;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 public record CodeObj(
-        List<Integer> bytecode,
+        Bytecode bytecode,
         List<Value> constants,
         String name,
         Counter scopeLevel,
         List<LocalVar> locals,
-        int arity
+        // slot of the innermost local of each name in scope
+        Map<String, Integer> localsIndex,
+        int arity,
+        TierData tierData
 ) {
-    public CodeObj(List<Integer> bytecode, List<Value> constants, String name) {
-        this(bytecode, constants, name, new Counter(), new ArrayList<>(), 0);
+    public CodeObj(Bytecode bytecode, List<Value> constants, String name) {
+        this(bytecode, constants, name, new Counter(), new ArrayList<>(), new HashMap<>(), 0, new TierData());
     }
 
     public static CodeObj newCo(String name, int arity) {
-        return new CodeObj(new ArrayList<>(), new ArrayList<>(), name, new Counter(), new ArrayList<>(), arity);
+        return new CodeObj(new Bytecode(), new ArrayList<>(), name, new Counter(), new ArrayList<>(), new HashMap<>(), arity, new TierData());
     }
     public static CodeObj newCoWithDebugSymbols(String name, int arity) {
-        return new CodeObj(new ArrayList<>(), new ArrayList<>(), name, new Counter(), new DebugArrayList<>(), arity);
+        return new CodeObj(new Bytecode(), new ArrayList<>(), name, new Counter(), new DebugArrayList<>(), new HashMap<>(), arity, new TierData());
     }
 
     @Override
     public String toString() {
-        final String sBytecode =
-                bytecode.stream().map("0x%X"::formatted).collect(Collectors.joining(",", "[", "]"));
-        return "{bytecode: %s, constants: %s, name: %s}".formatted(sBytecode, constants, name);
+        return "{bytecode: %s, constants: %s, name: %s}".formatted(bytecode, constants, name);
     }
 
     public int getLocalIdx(final String name) {
-        if (locals.isEmpty()) {
-            return -1;
-        }
-
-        for (int i = locals().size() - 1; i >= 0; i--) {
-            if (locals().get(i).name().equals(name)) {
-                return i;
-            }
-        }
-
-        return -1;
+        return localsIndex.getOrDefault(name, -1);
     }
 
     public void addLocal(final String varName) {
-       locals().add(new LocalVar(varName, scopeLevel.value()));
+        final Integer shadowed = localsIndex.put(varName, locals.size());
+        locals.add(new LocalVar(varName, scopeLevel.value(), shadowed == null ? -1 : shadowed));
+    }
+
+    /**
+     * Drops the innermost local, a local it shadowed is visible again.
+     */
+    public void removeLastLocal() {
+        final LocalVar local = locals.getLast();
+        if (local.shadowed() == -1) {
+            localsIndex.remove(local.name());
+        } else {
+            localsIndex.put(local.name(), local.shadowed());
+        }
+        locals.removeLast();
     }
 
     public void addConst(final Value value) {
         constants().add(value);
     }
+
+    /**
+     * Called once code generation of this object is finished.
+     */
+    public void freeze() {
+        bytecode.freeze();
+    }
 }
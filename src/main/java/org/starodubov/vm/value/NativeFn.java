@@ -0,0 +1,37 @@
+package org.starodubov.vm.value;
+
+/**
+ * Body of a native function. The vm passes the arguments of a call straight to
+ * the entry point for the arity and puts the result in place of the callee and
+ * the arguments, so a native never sees the vm stack.
+ */
+public sealed interface NativeFn {
+
+    @FunctionalInterface
+    non-sealed interface Fn0 extends NativeFn {
+        Value call();
+    }
+
+    @FunctionalInterface
+    non-sealed interface Fn1 extends NativeFn {
+        Value call(Value a);
+    }
+
+    @FunctionalInterface
+    non-sealed interface Fn2 extends NativeFn {
+        Value call(Value a, Value b);
+    }
+
+    // the arguments are in a new array, the function may keep it
+    @FunctionalInterface
+    non-sealed interface FnN extends NativeFn {
+        Value call(Value[] args);
+    }
+
+    /**
+     * Native working on the vm stack: it peeks its arguments and pushes the
+     * result, the vm then drops the arguments.
+     */
+    record StackFn(Runnable body) implements NativeFn {
+    }
+}
@@ -2,7 +2,7 @@ package org.starodubov.vm.value;
 
 public record NativeObj(
         String name,
-        Runnable fn,
+        NativeFn fn,
         int arity
 ) {
 }
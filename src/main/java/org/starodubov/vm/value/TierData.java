@@ -0,0 +1,22 @@
+package org.starodubov.vm.value;
+
+/**
+ * Run time state an execution tier keeps for a {@link CodeObj}, filled lazily.
+ */
+public final class TierData {
+
+    // pre-decoded nodes of the closure tier
+    public Object closureNodes;
+
+    // calls and backward jumps counted by the JIT until the code is compiled
+    public int hotness;
+
+    // JVM code generated by the JIT, null while interpreted
+    public Object jitCode;
+
+    // how many times the compiled code was dropped
+    public int deopts;
+
+    // set when the JIT cannot or should not compile the code
+    public boolean jitFailed;
+}
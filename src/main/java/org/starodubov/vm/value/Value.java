@@ -14,6 +14,10 @@ public record Value(
 
     public static final Value VOID = new Value(ValueTypes.VOID, new Object());
 
+    public static final Value TRUE = new Value(ValueTypes.BOOLEAN, true);
+
+    public static final Value FALSE = new Value(ValueTypes.BOOLEAN, false);
+
     public static <T extends Number> Value number(T number) {
         return new Value(ValueTypes.NUMBER, number);
     }
@@ -35,7 +39,7 @@ public record Value(
     }
 
     public static Value bool(boolean val) {
-        return new Value(ValueTypes.BOOLEAN, val);
+        return val ? TRUE : FALSE;
     }
 
     public static boolean asBoolean(Value val) {
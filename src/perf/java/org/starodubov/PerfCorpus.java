@@ -0,0 +1,166 @@
+package org.starodubov;
+
+import org.starodubov.vm.OpcodeProfiler;
+import org.starodubov.vm.OutputSink;
+import org.starodubov.vm.Vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Runs every {@code .vm} script of a directory and compares the results with a
+ * baseline file. A script is measured by
+ * <ul>
+ *     <li>median wall time of compiling and running it in a new vm,</li>
+ *     <li>instructions executed, counted in a separate profiled run,</li>
+ *     <li>bytes allocated by one compile and run.</li>
+ * </ul>
+ * It fails when a measure of a script exceeds its baseline by more than the
+ * threshold. With {@code --update} it writes the baseline instead.
+ * <pre>
+ * PerfCorpus corpusDir baselineFile reportFile [--update] [--iterations n] [--threshold fraction]
+ * </pre>
+ */
+public class PerfCorpus {
+
+    private static final String HEADER = "# script\tmedian_ms\tinstructions\tallocated_bytes";
+
+    private static final int WARMUP = 3;
+
+    record Result(double medianMs, long instructions, long allocatedBytes) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("usage: PerfCorpus corpusDir baselineFile reportFile [--update] [--iterations n] [--threshold fraction]");
+            System.exit(2);
+        }
+        final Path corpus = Path.of(args[0]);
+        final Path baselineFile = Path.of(args[1]);
+        final Path reportFile = Path.of(args[2]);
+        final List<String> flags = Arrays.asList(args).subList(3, args.length);
+        final boolean update = flags.contains("--update");
+        final int iterations = Integer.parseInt(option(flags, "--iterations", "10"));
+        final double threshold = Double.parseDouble(option(flags, "--threshold", "0.25"));
+
+        final Map<String, Result> results = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(corpus)) {
+            for (Path script : files.filter(p -> p.toString().endsWith(".vm")).sorted().toList()) {
+                final Result result = measure(Files.readString(script), iterations);
+                results.put(script.getFileName().toString(), result);
+                System.out.printf(Locale.ROOT, "%-20s %10.2f ms %12d instructions %14d bytes%n",
+                        script.getFileName(), result.medianMs(), result.instructions(), result.allocatedBytes());
+            }
+        }
+        write(reportFile, results);
+        if (update) {
+            write(baselineFile, results);
+            System.out.println("baseline written to " + baselineFile);
+            return;
+        }
+
+        final Map<String, Result> baseline = read(baselineFile);
+        final List<String> regressions = new ArrayList<>();
+        for (var e : results.entrySet()) {
+            final Result base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.println(e.getKey() + " is not in the baseline");
+                continue;
+            }
+            final Result now = e.getValue();
+            check(regressions, e.getKey(), "time", now.medianMs(), base.medianMs(), threshold);
+            check(regressions, e.getKey(), "instructions", now.instructions(), base.instructions(), threshold);
+            check(regressions, e.getKey(), "allocation", now.allocatedBytes(), base.allocatedBytes(), threshold);
+        }
+        if (!regressions.isEmpty()) {
+            regressions.forEach(System.out::println);
+            System.exit(1);
+        }
+        System.out.println("no regressions over " + Math.round(threshold * 100) + "%");
+    }
+
+    static Result measure(String source, int iterations) {
+        for (int i = 0; i < WARMUP; i++) {
+            runOnce(source);
+        }
+        final long[] times = new long[iterations];
+        final long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            runOnce(source);
+            times[i] = System.nanoTime() - start;
+        }
+        final long allocated = (allocatedBytes() - allocatedBefore) / iterations;
+        Arrays.sort(times);
+
+        final var vm = newVm();
+        final var profiler = new OpcodeProfiler();
+        vm.setProfiler(profiler);
+        vm.exec(source);
+        return new Result(times[iterations / 2] / 1e6, profiler.instructions(), allocated);
+    }
+
+    private static void runOnce(String source) {
+        newVm().exec(source);
+    }
+
+    // scripts print a lot, the output is not what is measured
+    private static Vm newVm() {
+        final var vm = new Vm();
+        vm.setOutput(new OutputSink(OutputStream.nullOutputStream()));
+        return vm;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+
+    private static void check(List<String> regressions, String script, String measure,
+                              double now, double base, double threshold) {
+        if (now > base * (1 + threshold)) {
+            regressions.add(String.format(Locale.ROOT, "REGRESSION %s %s: %.2f, baseline %.2f (+%.0f%%)",
+                    script, measure, now, base, (now / base - 1) * 100));
+        }
+    }
+
+    private static String option(List<String> flags, String name, String defaultValue) {
+        final int i = flags.indexOf(name);
+        return i == -1 || i + 1 >= flags.size() ? defaultValue : flags.get(i + 1);
+    }
+
+    private static void write(Path file, Map<String, Result> results) throws IOException {
+        final var out = new StringBuilder(HEADER).append('\n');
+        for (var e : results.entrySet()) {
+            out.append(String.format(Locale.ROOT, "%s\t%.3f\t%d\t%d\n", e.getKey(),
+                    e.getValue().medianMs(), e.getValue().instructions(), e.getValue().allocatedBytes()));
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, out);
+    }
+
+    private static Map<String, Result> read(Path file) throws IOException {
+        final Map<String, Result> results = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            results.put(fields[0], new Result(Double.parseDouble(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,12 @@
+package org.starodubov.vm;
+
+/**
+ * Runs the whole {@link VmTest} suite in the closure tier.
+ */
+public class ClosureTierVmTest extends VmTest {
+
+    @Override
+    Vm newVm() {
+        return new Vm(VmOptions.defaults().withTier(ExecutionTier.CLOSURE));
+    }
+}
@@ -0,0 +1,95 @@
+package org.starodubov.vm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the whole {@link VmTest} suite with the JIT compiling functions on the first call.
+ */
+public class JitVmTest extends VmTest {
+
+    @Override
+    Vm newVm() {
+        return new Vm(VmOptions.defaults().withJitThreshold(1));
+    }
+
+    // small functions stay calls instead of being inlined into the caller
+    private static Vm noInliningVm() {
+        return new Vm(VmOptions.defaults().withJitThreshold(1).withInlineBudget(0));
+    }
+
+    @Test
+    void recursiveFunctionIsCompiled() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+                (fib 20)
+                """);
+
+        assertEquals(6765L, result.obj());
+        assertEquals(1, vm.jit.compiledFunctions());
+    }
+
+    @Test
+    void loopInsideCompiledFunction() {
+        var vm = noInliningVm();
+        var result = vm.exec("""
+                (def sum (n)
+                    (begin
+                        (var i 0)
+                        (var acc 0)
+                        (while (< i n)
+                            (begin
+                                (set acc (+ acc i))
+                                (set i (+ i 1))
+                            )
+                        )
+                        acc
+                    )
+                )
+                (+ (sum 10) (sum 100))
+                """);
+
+        assertEquals(4995L, result.obj());
+        assertEquals(1, vm.jit.compiledFunctions());
+    }
+
+    @Test
+    void deepRecursionFallsBackToTheInterpreter() {
+        var source = """
+                (def f (n) (if (< n 1) 0 (+ 1 (f (- n 1)))))
+                (f %d)
+                """;
+
+        assertEquals(5000L, newVm().exec(source.formatted(5000)).obj());
+        assertEquals(200000L, new Vm(VmOptions.defaults().withJit()).exec(source.formatted(200000)).obj());
+    }
+
+    @Test
+    void deoptimizesWhenArgumentTypesChange() {
+        var vm = noInliningVm();
+        var result = vm.exec("""
+                (def eq (a b) (== a b))
+                (var b1 (eq 3 3))
+                (var b2 (eq true false))
+                (== b1 b2)
+                """);
+
+        assertEquals(false, result.obj());
+        assertEquals(1, vm.jit.deoptimizations());
+    }
+
+    @Test
+    void functionsUsingGlobalsAreInterpreted() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var x 10)
+                (def addX (a) (+ a x))
+                (addX (addX 1))
+                """);
+
+        assertEquals(21L, result.obj());
+        assertEquals(0, vm.jit.compiledFunctions());
+    }
+}
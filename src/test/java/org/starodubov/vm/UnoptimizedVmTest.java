@@ -0,0 +1,12 @@
+package org.starodubov.vm;
+
+/**
+ * Runs the whole {@link VmTest} suite on code the compiler does not optimize.
+ */
+public class UnoptimizedVmTest extends VmTest {
+
+    @Override
+    Vm newVm() {
+        return new Vm(VmOptions.defaults().withOptimization(OptimizationLevel.O0));
+    }
+}
@@ -2,19 +2,48 @@ package org.starodubov.vm;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.starodubov.vm.value.CodeObj;
+import org.starodubov.vm.value.NativeFn;
 import org.starodubov.vm.value.Value;
 import org.starodubov.vm.value.ValueTypes;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.openmbean.TabularData;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class VmTest {
 
     Vm vm;
 
+    Vm newVm() {
+        return new Vm();
+    }
+
     @BeforeEach
     void beforeEach() {
-        vm = new Vm();
+        vm = newVm();
     }
 
     @Test
@@ -259,7 +288,7 @@ public class VmTest {
 
     @Test
     void globalVariables() {
-        var vm = new Vm();
+        var vm = newVm();
         vm.setGlobalVars(new GlobalVar("x", Value.number(100)));
 
         var result = vm.exec("""
@@ -271,7 +300,7 @@ public class VmTest {
 
     @Test
     void globalVariablesStr() {
-        var vm = new Vm();
+        var vm = newVm();
         vm.setGlobalVars(new GlobalVar("x", Value.string("hello")));
 
         var result = vm.exec("""
@@ -283,7 +312,7 @@ public class VmTest {
 
     @Test
     void defineGlobalVariables() {
-        var vm = new Vm();
+        var vm = newVm();
         vm.setGlobalVars(new GlobalVar("x", Value.number(100)));
         var result = vm.exec("""
                 (var z (+ x 3))
@@ -294,7 +323,7 @@ public class VmTest {
 
     @Test
     void setGlobalVariables() {
-        var vm = new Vm();
+        var vm = newVm();
         vm.setGlobalVars(new GlobalVar("x", Value.number(100)));
         var result = vm.exec("""
                 (set x (+ x 3))
@@ -305,7 +334,7 @@ public class VmTest {
 
     @Test
     void blocksLocalVariables() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                     (var x 5)
                     (set x (+ x 10))
@@ -317,7 +346,7 @@ public class VmTest {
 
     @Test
     void blocksLocalVariablesWithScope() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                     (var x 5)
                     (set x (+ x 10))
@@ -336,7 +365,7 @@ public class VmTest {
 
     @Test
     void blocksLocalVariablesWithScope2() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                     (var x 5)
                     (set x (+ x 10))
@@ -356,7 +385,7 @@ public class VmTest {
 
     @Test
     void exec() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                 (var count 0)
                 (begin
@@ -373,7 +402,7 @@ public class VmTest {
 
     @Test
     void whileLoop() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                  (var i 10)
                  (var count 0)
@@ -391,7 +420,7 @@ public class VmTest {
 
     @Test
     void forLoop() {
-        var vm = new Vm();
+        var vm = newVm();
 
         var result = vm.exec("""
                 (var count 0)
@@ -407,7 +436,7 @@ public class VmTest {
 
     @Test
     void nativeFunctions() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                 (var x 2)
                 (square x)
@@ -418,7 +447,7 @@ public class VmTest {
 
     @Test
     void nativeFunctions_print() {
-        var vm = new Vm();
+        var vm = newVm();
 
         var result = vm.exec("""
                 (var x 2)
@@ -432,9 +461,144 @@ public class VmTest {
         assertEquals(ValueTypes.VOID, result.type());
     }
 
+    @Test
+    void typedNatives() {
+        var vm = newVm();
+        vm.addNative("forty-two", 0, (NativeFn.Fn0) () -> Value.number(42L));
+        vm.addNative("neg", 1, (NativeFn.Fn1) a -> Value.number(-Value.asNumber(a)));
+        vm.addNative("join", 2, (NativeFn.Fn2) (a, b) -> Value.string(Value.asString(a) + Value.asString(b)));
+        vm.addNative("sum3", 3, (NativeFn.FnN) args ->
+                Value.number(Value.asNumber(args[0]) + Value.asNumber(args[1]) + Value.asNumber(args[2])));
+
+        assertEquals(41L, vm.exec("(sum3 (forty-two) (neg 2) 1)").obj());
+        assertEquals("ab", vm.exec("(join \"a\" \"b\")").obj());
+    }
+
+    static class HostFunctions {
+
+        static long twice(long x) {
+            return 2 * x;
+        }
+
+        static boolean positive(long x) {
+            return x > 0;
+        }
+
+        static String greet(String name) {
+            return "hello " + name;
+        }
+
+        static Value first(Value a, Value b) {
+            return a;
+        }
+
+        static long sum4(long a, long b, long c, long d) {
+            return a + b + c + d;
+        }
+    }
+
+    @Test
+    void staticMethodsAsNatives() {
+        var vm = newVm();
+        vm.addNatives(MethodHandles.lookup(), HostFunctions.class);
+
+        var result = vm.exec("""
+                (if (positive (twice 3))
+                    (sum4 (first 1 "x") 2 3 4)
+                    0)
+                """);
+
+        assertEquals(10L, result.obj());
+        assertEquals("hello vm", vm.exec("(greet \"vm\")").obj());
+    }
+
+    @Test
+    void nativeCalledWithWrongArgumentCount() {
+        var vm = newVm();
+        var e = assertThrows(IllegalStateException.class, () -> vm.exec("""
+                (square 1 2)
+                """));
+
+        assertTrue(e.getMessage().contains("square"), e.getMessage());
+    }
+
+    @Test
+    void stackNativeFunction() {
+        var vm = newVm();
+        vm.addNativeFunction("inc", () -> vm.pushNumber(Value.asNumber(vm.peek()) + 1), 1);
+
+        assertEquals(8L, vm.exec("(+ (inc 1) (inc 5))").obj());
+    }
+
+    @Test
+    void printWritesToOutputSink() {
+        var vm = newVm();
+        var bytes = new ByteArrayOutputStream();
+        vm.setOutput(new OutputSink(bytes));
+
+        vm.exec("""
+                (println 1)
+                (print "a")
+                (println true)
+                """);
+
+        var nl = System.lineSeparator();
+        assertEquals("1" + nl + "atrue" + nl, bytes.toString());
+    }
+
+    @Test
+    void outputSinkWritesWhenFlushedOrFull() {
+        var bytes = new ByteArrayOutputStream();
+        var sink = new OutputSink(bytes, 8);
+
+        sink.print("abc");
+        assertEquals("", bytes.toString());
+        sink.flush();
+        assertEquals("abc", bytes.toString());
+        sink.print("defghijk");
+        assertEquals("abcdefghijk", bytes.toString());
+    }
+
+    @Test
+    void asyncOutputSinkKeepsOrder() {
+        var bytes = new ByteArrayOutputStream();
+        var expected = new StringBuilder();
+        try (var sink = OutputSink.async(bytes, 64)) {
+            for (int i = 0; i < 10_000; i++) {
+                sink.println(i);
+                expected.append(i).append(System.lineSeparator());
+            }
+            sink.flush();
+            assertEquals(expected.toString(), bytes.toString());
+            sink.print("end");
+        }
+
+        assertEquals(expected + "end", bytes.toString());
+    }
+
+    @Test
+    void closedAsyncSinkCanBeClosedAndFlushedAgain() {
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            var bytes = new ByteArrayOutputStream();
+            var sink = OutputSink.async(bytes, 64);
+            var vm = newVm();
+            vm.setOutput(sink);
+            vm.exec("(println 1)");
+            sink.close();
+
+            sink.close();
+            sink.flush();
+            assertThrows(IllegalStateException.class, () -> sink.print("late"));
+            vm.setOutput(new OutputSink(bytes));
+            vm.exec("(println 2)");
+
+            assertEquals("1" + System.lineSeparator() + "2" + System.lineSeparator(), bytes.toString());
+        });
+    }
+
     @Test
     void simpleUserDefinedFunction() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                 (def square2 (x) (* x x))
                 (square2 3)
@@ -445,7 +609,7 @@ public class VmTest {
 
     @Test
     void simple2UserDefinedFunction() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                 (def sum (a b)
                     (begin
@@ -461,7 +625,7 @@ public class VmTest {
 
     @Test
     void userDefinedFunctions() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
                 (def factorial (x)
                      (if (== 1 x)
@@ -477,7 +641,7 @@ public class VmTest {
 
     @Test
     void lambdaFunction() {
-       var vm = new Vm();
+       var vm = newVm();
        var result = vm.exec("""
               (
               (lambda (x) (* x x)) 2
@@ -490,7 +654,7 @@ public class VmTest {
 
     @Test
     void assignLambdaFunction() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
               (var sum (lambda (a b) (+ a b)))
               
@@ -502,7 +666,7 @@ public class VmTest {
 
     @Test
     void bytecodeOptimization() {
-        var vm = new Vm();
+        var vm = newVm();
         var result = vm.exec("""
               (var x 1)
               (var z 2)
@@ -518,4 +682,710 @@ public class VmTest {
         assertEquals(120L, result.obj());
     }
 
+    @Test
+    void wideOperands() {
+        var vm = newVm();
+        final var program = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            program.append("(var g%d %d)\n".formatted(i, i + 1000));
+        }
+        program.append("(var count 0)\n(while (< count 10) (begin\n");
+        for (int i = 0; i < 100; i++) {
+            program.append("(set g299 (+ g%d 1))\n".formatted(i));
+        }
+        program.append("(set count (+ count 1))))\n(+ g299 count)");
+
+        var result = vm.exec(program.toString());
+
+        assertEquals(1110L, result.obj());
+    }
+
+    @Test
+    void setLocalInsideFunction() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def inc (a)
+                    (begin
+                        (var x 1)
+                        (set x (+ x a))
+                        x
+                    )
+                )
+                (+ (inc 5) (inc 10))
+                """);
+
+        assertEquals(17L, result.obj());
+    }
+
+    @Test
+    void deepRecursionGrowsFrameStack() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def depth (n) (if (== n 0) 0 (+ 1 (depth (- n 1)))))
+                (depth 150)
+                """);
+
+        assertEquals(150L, result.obj());
+    }
+
+    @Test
+    void compiledProgramRunsRepeatedlyWithFreshGlobals() {
+        var vm = newVm();
+        var program = vm.compile("""
+                (var count 0)
+                (def inc () (set count (+ count 1)))
+                (inc)
+                (inc)
+                count
+                """);
+
+        assertEquals(2L, vm.run(program).obj());
+        assertEquals(2L, vm.run(program).obj());
+        assertEquals(2L, newVm().run(program).obj());
+    }
+
+    @Test
+    void compiledProgramTakesHostVariablesOfRunningVm() {
+        var vm = newVm();
+        vm.setGlobalVars(new GlobalVar("x", Value.number(1)));
+        var program = vm.compile("""
+                (+ x 10)
+                """);
+
+        var other = newVm();
+        other.setGlobalVars(new GlobalVar("x", Value.number(5)));
+
+        assertEquals(11L, vm.run(program).obj());
+        assertEquals(15L, other.run(program).obj());
+    }
+
+    @Test
+    void disassemblyIsOptIn() {
+        var vm = newVm();
+        var program = vm.compile("""
+                (def sq (x) (* x x))
+                (sq 3)
+                """);
+        var bytes = new ByteArrayOutputStream();
+        program.disassemble(new PrintStream(bytes));
+
+        assertTrue(bytes.toString().contains("Disassembly: sq"));
+        assertEquals(9L, vm.run(program).obj());
+    }
+
+    @Test
+    void stackGrowsForDeepRecursion() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var one 1)
+                (def depth (n) (if (== n 0) 0 (+ one (depth (- n 1)))))
+                (depth 20000)
+                """);
+
+        assertEquals(20000L, result.obj());
+    }
+
+    @Test
+    void stackOverflowBeyondMaxStackSize() {
+        var vm = new Vm(VmOptions.defaults().withStackSize(16, 64));
+
+        assertThrows(StackOverflowError.class, () -> vm.exec("""
+                (var one 1)
+                (def depth (n) (if (== n 0) 0 (+ one (depth (- n 1)))))
+                (depth 100)
+                """));
+    }
+
+    @Test
+    void fusedAddsOfStringsFitTheComputedStack() {
+        var global = new Vm(VmOptions.defaults().withStackSize(1, 1 << 20));
+        assertEquals("ab", Value.asString(global.exec("(var s \"a\") (set s (+ s \"b\")) s")));
+
+        // each stack holds exactly what the program needs
+        assertEquals("xy", Value.asString(new Vm(VmOptions.defaults().withStackSize(4, 4)).exec("""
+                (def f (a) (begin (var s "x") (set s (+ s "y")) s))
+                (f 1)
+                """)));
+        assertEquals("pq", Value.asString(new Vm(VmOptions.defaults().withStackSize(5, 5)).exec("""
+                (def g (a b) (begin (var c 0) (+ a b)))
+                (g "p" "q")
+                """)));
+        assertEquals("pz", Value.asString(new Vm(VmOptions.defaults().withStackSize(4, 4)).exec("""
+                (def h (a) (begin (var c 0) (+ a "z")))
+                (h "p")
+                """)));
+    }
+
+    @Test
+    void ifWithoutAlternateIsVoid() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var x 1)
+                (if (> x 5) (set x 10))
+                """);
+
+        assertEquals(ValueTypes.VOID, result.type());
+    }
+
+    @Test
+    void tailCallsRunInConstantStack() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def count (n acc)
+                    (begin
+                        (var next (- n 1))
+                        (if (== n 0) acc (count next (+ acc 2)))
+                    )
+                )
+                (count 100000 0)
+                """);
+
+        assertEquals(200000L, result.obj());
+    }
+
+    @Test
+    void mutualTailCalls() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var odd 0)
+                (def even (n) (if (== n 0) true (odd (- n 1))))
+                (def odd (n) (if (== n 0) false (even (- n 1))))
+                (var a (even 10001))
+                (var b (odd 10001))
+                (!= a b)
+                """);
+
+        assertEquals(true, result.obj());
+    }
+
+    @Test
+    void tailCallOfNative() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def sq (x) (square (+ x 1)))
+                (+ (sq 2) (sq 3))
+                """);
+
+        assertEquals(25L, result.obj());
+    }
+
+    @Test
+    void numericLoopResultIsBoxedOnce() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var sum 0)
+                (begin
+                    (var i 0)
+                    (var acc 0)
+                    (while (< i 1000)
+                        (begin
+                            (set acc (+ acc (* i 2)))
+                            (set i (+ i 1))
+                        )
+                    )
+                    (set sum acc)
+                )
+                (== sum 999000)
+                """);
+
+        assertEquals(true, result.obj());
+    }
+
+    @Test
+    void quickenedInstructionsFallBackOnTypeChange() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (def add (a b) (+ a b))
+                (def eq (a b) (== a b))
+                (var n (add 1 2))
+                (var s (add "a" "b"))
+                (var m (add n 4))
+                (var b1 (eq n 3))
+                (var b2 (eq true false))
+                (var b3 (eq m 7))
+                (if (== b1 (== b3 (== b2 false))) (add s "c") "fail")
+                """);
+
+        assertEquals("abc", result.obj());
+    }
+
+    @Test
+    void superinstructionsKeepJumpTargets() {
+        var vm = newVm();
+        var result = vm.exec("""
+                (var i 0)
+                (var s "")
+                (var limit 5)
+                (while (if (> limit 4) (< i 3) (< i 5))
+                    (begin
+                        (set i (+ i 1))
+                        (set s (+ s "x"))
+                    )
+                )
+                (+ s (if (== i 3) "!" "?"))
+                """);
+
+        assertEquals("xxx!", result.obj());
+    }
+
+    @Test
+    void opcodeProfiler() {
+        var vm = newVm();
+        var profiler = new OpcodeProfiler();
+        vm.setProfiler(profiler);
+        var result = vm.exec("""
+                (var i 0)
+                (while (< i 10) (set i (+ i 1)))
+                i
+                """);
+
+        assertEquals(10L, result.obj());
+        assertEquals(11, profiler.count(OpCodes.OP_CMP_JMP_IF_FALSE));
+        assertEquals(10, profiler.count(OpCodes.OP_INC_GLOBAL, OpCodes.OP_POP));
+        assertEquals(10, profiler.count(OpCodes.OP_POP, OpCodes.OP_JMP, OpCodes.OP_GET_GLOBAL));
+
+        var report = new ByteArrayOutputStream();
+        profiler.writeReport(new java.io.PrintStream(report), 5);
+        assertTrue(report.toString().contains("INC_GLOBAL -> POP"));
+    }
+
+    @Test
+    void bytecodeCacheLoadsProgramOnSecondCompile() throws IOException {
+        var dir = Files.createTempDirectory("vm-cache");
+        var source = """
+                (var base 10)
+                (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+                (def add (x) (+ x base))
+                (add (fib 15))
+                """;
+
+        var cache = new BytecodeCache(dir);
+        var compiled = cache.compile(newVm(), source);
+        var loaded = cache.compile(newVm(), source);
+
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertEquals(620L, newVm().run(compiled).obj());
+        assertEquals(620L, newVm().run(loaded).obj());
+
+        cache.compile(newVm(), source + " ");
+        assertEquals(2, cache.misses());
+        // the key changes with the compiler classes, not only with the format version
+        assertEquals(32, BytecodeCache.COMPILER_DIGEST.length);
+    }
+
+    @Test
+    void bytecodeCacheKeyCoversEveryVmClass() throws IOException {
+        var root = Files.createTempDirectory("vm-classes");
+        var vmDir = Files.createDirectories(root.resolve("org/starodubov/vm"));
+        var valueDir = Files.createDirectories(root.resolve("org/starodubov/vm/value"));
+        Files.write(vmDir.resolve("Tokenizer.class"), new byte[]{1});
+        Files.write(vmDir.resolve("Compiler$1.class"), new byte[]{1});
+        Files.write(valueDir.resolve("Value.class"), new byte[]{1});
+        var digest = BytecodeCache.compilerDigest(root);
+
+        Files.write(vmDir.resolve("Tokenizer.class"), new byte[]{2});
+        var tokenizerChanged = BytecodeCache.compilerDigest(root);
+        assertFalse(Arrays.equals(digest, tokenizerChanged));
+
+        Files.write(vmDir.resolve("Compiler$1.class"), new byte[]{2});
+        var nestedChanged = BytecodeCache.compilerDigest(root);
+        assertFalse(Arrays.equals(tokenizerChanged, nestedChanged));
+
+        Files.write(valueDir.resolve("Value.class"), new byte[]{2});
+        assertFalse(Arrays.equals(nestedChanged, BytecodeCache.compilerDigest(root)));
+    }
+
+    @Test
+    void bytecodeCacheRecompilesDamagedFile() throws IOException {
+        var dir = Files.createTempDirectory("vm-cache");
+        var cache = new BytecodeCache(dir);
+        cache.compile(newVm(), "(+ 1 2)");
+
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList()) {
+                var bytes = Files.readAllBytes(file);
+                Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+            }
+        }
+
+        var program = cache.compile(newVm(), "(+ 1 2)");
+        assertEquals(2, cache.misses());
+        assertEquals(3L, newVm().run(program).obj());
+    }
+
+    @Test
+    void largeGeneratedProgram() {
+        var program = new StringBuilder("(var x 0)\n");
+        for (int i = 1; i <= 20000; i++) {
+            program.append("(set x (+ x ").append(i).append("))\n");
+        }
+        program.append("x");
+
+        assertEquals(200010000L, newVm().exec(program.toString()).obj());
+    }
+
+    @Test
+    void unexpectedTokenReportsLineAndColumn() {
+        var e = assertThrows(RuntimeException.class, () -> newVm().exec("""
+                (var x 1)
+                (set x #)
+                """));
+
+        assertTrue(e.getMessage().contains("Unexpected token: \"#\" at 2:7"), e.getMessage());
+    }
+
+    @Test
+    void unclosedListIsUnexpectedEndOfInput() {
+        var e = assertThrows(RuntimeException.class, () -> newVm().exec("""
+                (def f (x) (+ x 1)
+                """));
+
+        assertTrue(e.getMessage().contains("Unexpected end of input"), e.getMessage());
+    }
+
+    @Test
+    void deeplyNestedExpressions() {
+        var program = "(+ 1 ".repeat(500) + "0" + ")".repeat(500);
+
+        assertEquals(500L, newVm().exec(program).obj());
+    }
+
+    @Test
+    void innerLocalShadowsOuterUntilScopeExit() {
+        var result = newVm().exec("""
+                (def f (x)
+                  (begin
+                    (var y (+ x 1))
+                    (var z (begin
+                      (var y 100)
+                      (var x 1000)
+                      (+ x y)))
+                    (+ (+ x y) z)))
+                (f 1)
+                """);
+
+        assertEquals(1103L, result.obj());
+    }
+
+    @Test
+    void manyGlobals() {
+        var program = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            program.append("(var g").append(i).append(" ").append(i).append(")\n");
+        }
+        program.append("(+ g0 (+ g2500 g4999))");
+
+        assertEquals(7499L, newVm().exec(program.toString()).obj());
+    }
+
+    @Test
+    void equalLiteralsShareConstant() {
+        var program = newVm().compile("""
+                (var a "x")
+                (var b "x")
+                (var c (+ 7 7))
+                (var d (== 7 7))
+                """);
+
+        var constants = program.main().co().constants();
+        assertEquals(1, constants.stream().filter(v -> "x".equals(v.obj())).count());
+        assertEquals(1, constants.stream().filter(v -> Long.valueOf(7).equals(v.obj())).count());
+    }
+
+    @Test
+    void sharedStringPoolAcrossFunctions() {
+        var vm = new Vm(VmOptions.defaults().withSharedStrings(true));
+        var program = vm.compile("""
+                (def f () "hello")
+                (def g () "hello")
+                (+ (f) (g))
+                """);
+
+        var f = program.codeObjs().stream().filter(co -> co.name().equals("f")).findFirst().orElseThrow();
+        var g = program.codeObjs().stream().filter(co -> co.name().equals("g")).findFirst().orElseThrow();
+        var fHello = f.constants().stream().filter(v -> v.type() == ValueTypes.STRING).findFirst().orElseThrow();
+        var gHello = g.constants().stream().filter(v -> v.type() == ValueTypes.STRING).findFirst().orElseThrow();
+        assertSame(fHello, gHello);
+        assertEquals("hellohello", vm.run(program).obj());
+    }
+
+    @Test
+    void functionDefinedOnceIsCalledAsConstant() {
+        var vm = newVm();
+        var program = vm.compile("""
+                (def sq (x) (* x x))
+                (def sum-squares (a b) (+ (sq a) (sq b)))
+                (sum-squares 3 4)
+                """);
+
+        for (var co : program.codeObjs()) {
+            var in = Instruction.decode(co.bytecode().code(), co.bytecode().size());
+            assertTrue(in.stream().noneMatch(i -> i.opcode == OpCodes.OP_GET_GLOBAL), co.name());
+        }
+        assertEquals(25L, vm.run(program).obj());
+    }
+
+    @Test
+    void reassignedFunctionIsNotBound() {
+        var result = newVm().exec("""
+                (def f () 1)
+                (var before (f))
+                (set f (lambda () 2))
+                (var g (if (> before 0) (lambda () 10) (lambda () 20)))
+                (+ (+ before (f)) (g))
+                """);
+
+        assertEquals(13L, result.obj());
+    }
+
+    @Test
+    void functionDefinedInBranchIsNotBound() {
+        assertThrows(IllegalStateException.class, () -> newVm().exec("""
+                (if false (def f (x) 1))
+                (f 2)
+                """));
+        assertThrows(IllegalStateException.class, () -> newVm().exec("""
+                (var defining false)
+                (if defining (def f (x) 1))
+                (f 2)
+                """));
+        assertThrows(IllegalStateException.class, () -> newVm().exec("""
+                (var i 0)
+                (while (< i 0) (def f (x) 1))
+                (f 2)
+                """));
+        assertEquals(1L, newVm().exec("""
+                (var defining true)
+                (if defining (def f (x) 1))
+                (f 2)
+                """).obj());
+    }
+
+    private static List<Integer> opcodes(CodeObj co) {
+        return Instruction.decode(co.bytecode().code(), co.bytecode().size()).stream()
+                .map(i -> i.opcode)
+                .filter(op -> op != Instruction.END)
+                .toList();
+    }
+
+    @Test
+    void constantExpressionsAreFolded() {
+        var vm = new Vm(VmOptions.defaults().withOptimization(OptimizationLevel.O1));
+        var program = vm.compile("""
+                (* (+ 1 2) (- 10 (/ 8 2)))
+                """);
+
+        assertEquals(List.of(OpCodes.OP_CONST, OpCodes.OP_HALT), opcodes(program.main().co()));
+        assertEquals(18L, vm.run(program).obj());
+    }
+
+    @Test
+    void branchOnConstantTestIsPruned() {
+        var vm = new Vm(VmOptions.defaults().withOptimization(OptimizationLevel.O2));
+        var program = vm.compile("""
+                (var x 5)
+                (if (< 1 2) (set x (+ x 1)) (set x 100))
+                (begin 1 2 x)
+                """);
+
+        var ops = opcodes(program.main().co());
+        assertTrue(ops.stream().noneMatch(op -> op == OpCodes.OP_JMP_IF_FALSE || op == OpCodes.OP_JMP), ops.toString());
+        assertEquals(6L, vm.run(program).obj());
+    }
+
+    @Test
+    void optimizationLevelsAgree() {
+        var source = """
+                (def f (n) (begin
+                  (var acc 0)
+                  (var i 0)
+                  (while (< i n) (begin
+                    (if (> (* 2 3) 5) (set acc (+ acc i)) (set acc 0))
+                    (if (== 1 2) 7)
+                    (set i (+ i 1))))
+                  acc))
+                (+ (f 10) (if false 1 (- 100 58)))
+                """;
+
+        for (var level : OptimizationLevel.values()) {
+            var vm = new Vm(VmOptions.defaults().withOptimization(level));
+            assertEquals(87L, vm.exec(source).obj(), level.name());
+        }
+    }
+
+    private static CodeObj codeObj(CompiledProgram program, String name) {
+        return program.codeObjs().stream().filter(co -> co.name().equals(name)).findFirst().orElseThrow();
+    }
+
+    @Test
+    void smallFunctionIsInlined() {
+        var source = """
+                (def sq (x) (* x x))
+                (def sum-squares (n) (begin
+                  (var acc 0)
+                  (var i 0)
+                  (while (< i n) (begin
+                    (set acc (+ acc (sq i)))
+                    (set i (+ i 1))))
+                  acc))
+                (sum-squares 10)
+                """;
+        var program = new Vm(VmOptions.defaults()).compile(source);
+
+        assertFalse(opcodes(codeObj(program, "sum-squares")).contains(OpCodes.OP_CALL));
+        assertEquals(285L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void inlinedFunctionKeepsItsLocals() {
+        var source = """
+                (def mix (a b) (begin
+                  (var t (* a 10))
+                  (begin
+                    (var t (+ t b))
+                    (set a t))
+                  (+ a t)))
+                (var x 1)
+                (def f (y) (begin
+                  (var z 100)
+                  (+ z (mix y (mix x 2)))))
+                (f 3)
+                """;
+        var program = new Vm(VmOptions.defaults()).compile(source);
+
+        assertFalse(opcodes(codeObj(program, "f")).contains(OpCodes.OP_CALL));
+        assertEquals(182L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void chainOfInlinedFunctions() {
+        var source = """
+                (def inc (x) (+ x 1))
+                (def inc2 (x) (+ (inc x) 1))
+                (def inc3 (x) (+ (inc2 x) 1))
+                (+ (inc3 1) (inc2 (inc 0)))
+                """;
+        var program = new Vm(VmOptions.defaults()).compile(source);
+
+        assertFalse(opcodes(codeObj(program, "inc2")).contains(OpCodes.OP_CALL));
+        assertEquals(7L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void recursiveFunctionIsNotInlined() {
+        var source = """
+                (def fact (n) (if (== n 0) 1 (* n (fact (- n 1)))))
+                (def g () (+ (fact 5) 1))
+                (g)
+                """;
+        var program = new Vm(VmOptions.defaults()).compile(source);
+
+        assertTrue(opcodes(codeObj(program, "g")).contains(OpCodes.OP_CALL));
+        assertEquals(121L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void reassignedFunctionIsNotInlined() {
+        var source = """
+                (def f () 1)
+                (def g () (+ (f) 10))
+                (var before (g))
+                (set f (lambda () 2))
+                (+ before (g))
+                """;
+        var program = new Vm(VmOptions.defaults()).compile(source);
+
+        assertTrue(opcodes(codeObj(program, "g")).contains(OpCodes.OP_CALL));
+        assertEquals(23L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void zeroInlineBudgetKeepsCalls() {
+        var source = """
+                (def sq (x) (* x x))
+                (def f (a) (+ (sq a) 1))
+                (f 7)
+                """;
+        var program = new Vm(VmOptions.defaults().withInlineBudget(0)).compile(source);
+
+        assertTrue(opcodes(codeObj(program, "f")).contains(OpCodes.OP_CALL));
+        assertEquals(50L, newVm().exec(source).obj());
+    }
+
+    @Test
+    void statsCountWhatTheVmDid() {
+        var vm = new Vm();
+        var stats = new VmStats();
+        vm.setStats(stats);
+
+        var result = vm.exec("""
+                (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+                (square (fib 10))
+                """);
+
+        var snapshot = stats.snapshot();
+        assertEquals(3025L, result.obj());
+        assertEquals(177L, (long) snapshot.calls().get("fib"));
+        assertEquals(1L, (long) snapshot.calls().get("square"));
+        assertTrue(snapshot.instructions() > 177 * 5, String.valueOf(snapshot.instructions()));
+        assertTrue(snapshot.maxStackDepth() > 10 * 2, String.valueOf(snapshot.maxStackDepth()));
+        assertTrue(snapshot.parseTimeNanos() > 0);
+        assertTrue(snapshot.compileTimeNanos() > 0);
+        assertEquals(List.of("main", "fib"), List.copyOf(snapshot.constantsPerCodeObj().keySet()));
+        assertTrue(snapshot.valuesAllocated() > 0);
+
+        stats.reset();
+        assertEquals(0, stats.snapshot().instructions());
+        assertTrue(stats.snapshot().calls().isEmpty());
+    }
+
+    @Test
+    void statsOverJmx() throws Exception {
+        var vm = new Vm();
+        var stats = new VmStats();
+        vm.setStats(stats);
+        stats.register("test-" + System.nanoTime());
+        try {
+            vm.exec("(square 3)");
+
+            var server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(stats.getInstructions(), server.getAttribute(stats.objectName(), "Instructions"));
+            var calls = (TabularData) server.getAttribute(stats.objectName(), "Calls");
+            assertEquals(1L, calls.get(new Object[]{"square"}).get("value"));
+        } finally {
+            stats.unregister();
+        }
+        assertNull(stats.objectName());
+    }
+
+    @Test
+    void flightRecorderEvents() throws Exception {
+        Path file = Files.createTempFile("vm", ".jfr");
+        try (var recording = new Recording()) {
+            for (String name : List.of("Parse", "Compile", "Execute", "FunctionCall", "NativeCall")) {
+                recording.enable("org.starodubov.vm." + name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            new Vm(VmOptions.defaults()).exec("""
+                    (def fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))
+                    (square (fib 5))
+                    """);
+            recording.stop();
+            recording.dump(file);
+
+            Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().startsWith("org.starodubov.vm."))
+                    .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+            assertTrue(events.get("org.starodubov.vm.Parse").get(0).getInt("nodes") > 0);
+            assertEquals("O2", events.get("org.starodubov.vm.Compile").get(0).getString("optimization"));
+            assertEquals("INTERPRETER", events.get("org.starodubov.vm.Execute").get(0).getString("tier"));
+            assertEquals(15, events.get("org.starodubov.vm.FunctionCall").size());
+            assertEquals("fib", events.get("org.starodubov.vm.FunctionCall").get(0).getString("function"));
+            assertEquals(1, events.get("org.starodubov.vm.NativeCall").get(0).getInt("arity"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
 }